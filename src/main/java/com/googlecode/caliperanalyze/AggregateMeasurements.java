@@ -1,13 +1,64 @@
 package com.googlecode.caliperanalyze;
 
+import java.util.Arrays;
+
 import com.google.caliper.model.Measurement;
+import com.googlecode.caliperanalyze.util.QuantileDigest;
 
 /**
  * Aggregate caliper measureents
  * 
+ * Uses the weighted online update of West (1979) for the mean and the sum of
+ * squared deviations. Partial aggregates (e.g. of different threads or files)
+ * can be combined exactly with {@link #merge}, using the pairwise update of
+ * Chan, Golub and LeVeque (1979).
+ * 
+ * A single disturbed measurement (e.g. a garbage collection pause) inflates
+ * both the mean and the standard deviation. Therefore, a robust estimator of
+ * location and scale can be chosen with {@link #setEstimator}, which only uses
+ * bounded memory, and can be merged, too.
+ * 
  * @author Erich Schubert
  */
 public class AggregateMeasurements {
+  /**
+   * Estimators of location and scale.
+   */
+  public enum Estimator {
+    /** Weighted mean and standard deviation. */
+    MEAN,
+    /**
+     * Median of means: the median of the means of
+     * {@link AggregateMeasurements#GROUPS} groups, which are filled
+     * round-robin; the scale is the median of the standard deviations of the
+     * groups.
+     */
+    MOM,
+    /**
+     * Mean of the central values, without the lowest and highest
+     * {@link AggregateMeasurements#TRIM} (estimated with the quantile sketch);
+     * the scale is the normalized interquartile range.
+     */
+    TRIMMED,
+    /**
+     * Huber M-estimator (computed on the quantile sketch); the scale is the
+     * normalized interquartile range.
+     */
+    HUBER
+  }
+
+  /** Number of groups of the median of means. */
+  public static final int GROUPS = 9;
+
+  /** Fraction trimmed on each side by the trimmed mean. */
+  public static final double TRIM = .1;
+
+  /**
+   * Consistency constant of the interquartile range for the normal
+   * distribution
+   */
+  private static final double IQR_SCALE = 1.349;
+
   /** Minimum and maximum */
   double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
 
@@ -17,6 +68,61 @@ public class AggregateMeasurements {
   /** Metadata */
   String unit = null, description = null;
 
+  /** Quantile sketch, may be {@code null} */
+  QuantileDigest digest = null;
+
+  /** Confidence interval of the mean, NaN if not computed */
+  double lower = Double.NaN, upper = Double.NaN;
+
+  /** Estimator of location and scale */
+  Estimator estimator = Estimator.MEAN;
+
+  /** Print the quantiles, not only use the sketch for the estimator */
+  boolean quantiles = false;
+
+  /** Statistics of the groups of the median of means, may be {@code null} */
+  double[] gmeans, gsqdevs, gweights, gsqweights;
+
+  /** Number of values added, also to choose the next group */
+  long count = 0;
+
+  /** Unweighted mean and squared deviations, e.g. for unweighted trend fits */
+  double umean = 0.0, usqdev = 0.0;
+
+  /**
+   * Also estimate quantiles, using a sketch of bounded size.
+   * 
+   * @param compression Compression parameter of the sketch, see
+   *        {@link QuantileDigest}.
+   * @return {@code this}
+   */
+  public AggregateMeasurements enableQuantiles(double compression) {
+    digest = new QuantileDigest(compression);
+    quantiles = true;
+    return this;
+  }
+
+  /**
+   * Choose the estimator of location and scale. Must be called before adding
+   * values.
+   * 
+   * @param estimator Estimator
+   * @return {@code this}
+   */
+  public AggregateMeasurements setEstimator(Estimator estimator) {
+    this.estimator = estimator;
+    if(estimator == Estimator.MOM && gmeans == null) {
+      gmeans = new double[GROUPS];
+      gsqdevs = new double[GROUPS];
+      gweights = new double[GROUPS];
+      gsqweights = new double[GROUPS];
+    }
+    if((estimator == Estimator.TRIMMED || estimator == Estimator.HUBER) && digest == null) {
+      digest = new QuantileDigest(QuantileDigest.DEFAULT_COMPRESSION);
+    }
+    return this;
+  }
+
   /**
    * Add a series of measurements.
    * 
@@ -52,7 +158,18 @@ public class AggregateMeasurements {
       throw new RuntimeException("Multiple types of measuresments are not supported.");
     }
     double weight = measurement.weight();
-    double val = measurement.value().magnitude() / weight;
+    return add(measurement.value().magnitude() / weight, weight);
+  }
+
+  /**
+   * Add a single (normalized) value to the aggregate, without checking the
+   * unit and description.
+   * 
+   * @param val Value, i.e. magnitude divided by weight
+   * @param weight Weight
+   * @return {@code this}
+   */
+  public AggregateMeasurements add(double val, double weight) {
     if(!Double.isNaN(val)) {
       min = (min < val) ? min : val;
       max = (max > val) ? max : val;
@@ -62,20 +179,132 @@ public class AggregateMeasurements {
       mean += delta * (weight / weights);
       // Online update squared deviations:
       sqdev += delta * (val - mean) * weight;
+      if(digest != null) {
+        digest.add(val, weight);
+      }
+      if(gmeans != null) {
+        final int g = (int) (count % GROUPS);
+        final double gdelta = val - gmeans[g];
+        gweights[g] += weight;
+        gsqweights[g] += weight * weight;
+        gmeans[g] += gdelta * (weight / gweights[g]);
+        gsqdevs[g] += gdelta * (val - gmeans[g]) * weight;
+      }
+      final double udelta = val - umean;
+      umean += udelta / (count + 1);
+      usqdev += udelta * (val - umean);
+      ++count;
     }
     return this;
   }
 
+  /**
+   * Merge another (partial) aggregate into this aggregate.
+   * 
+   * The result is the same as if all values had been added to a single
+   * aggregate, up to rounding, so merging can be done in any tree order.
+   * 
+   * @param other Aggregate to merge, not modified.
+   * @return {@code this}
+   */
+  public AggregateMeasurements merge(AggregateMeasurements other) {
+    if(other.unit != null) {
+      // Sanity check for units
+      if(unit == null) {
+        unit = other.unit;
+      }
+      else if(!unit.equals(other.unit)) {
+        throw new RuntimeException("Inconsistent units are not supported.");
+      }
+      // Sanity check for descriptions
+      if(description == null) {
+        description = other.description;
+      }
+      else if(!description.equals(other.description)) {
+        throw new RuntimeException("Multiple types of measuresments are not supported.");
+      }
+    }
+    if(!(other.weights > 0)) {
+      return this;
+    }
+    if(digest != null && other.digest == null) {
+      digest = null; // Quantiles are no longer available.
+      quantiles = false;
+    }
+    if(gmeans != null && other.gmeans == null) {
+      gmeans = gsqdevs = gweights = gsqweights = null;
+    }
+    min = (min < other.min) ? min : other.min;
+    max = (max > other.max) ? max : other.max;
+    final double sum = weights + other.weights;
+    final double delta = other.mean - mean;
+    // Weighted update, exact for weighted data:
+    mean += delta * (other.weights / sum);
+    sqdev += other.sqdev + delta * delta * (weights / sum) * other.weights;
+    weights = sum;
+    sqweights += other.sqweights;
+    if(digest != null && other.digest != null) {
+      digest.merge(other.digest);
+    }
+    if(gmeans != null) {
+      for(int g = 0; g < GROUPS; g++) {
+        final double gsum = gweights[g] + other.gweights[g];
+        if(other.gweights[g] > 0) {
+          final double gdelta = other.gmeans[g] - gmeans[g];
+          gmeans[g] += gdelta * (other.gweights[g] / gsum);
+          gsqdevs[g] += other.gsqdevs[g] + gdelta * gdelta * (gweights[g] / gsum) * other.gweights[g];
+          gweights[g] = gsum;
+          gsqweights[g] += other.gsqweights[g];
+        }
+      }
+    }
+    final double n = count + other.count, udelta = other.umean - umean;
+    umean += udelta * (other.count / n);
+    usqdev += other.usqdev + udelta * udelta * (count / n) * other.count;
+    count += other.count;
+    return this;
+  }
+
+  /**
+   * Set the unit and description, when the values are added without
+   * metadata.
+   * 
+   * @param unit Unit
+   * @param description Description
+   */
+  public void setMetadata(String unit, String description) {
+    this.unit = unit;
+    this.description = description;
+  }
+
+  /**
+   * Set a confidence interval of the mean, e.g. by bootstrapping.
+   * 
+   * @param lower Lower bound
+   * @param upper Upper bound
+   */
+  public void setConfidenceInterval(double lower, double upper) {
+    this.lower = lower;
+    this.upper = upper;
+  }
+
   @Override
   public String toString() {
     StringBuilder buf = new StringBuilder();
     buf.append(description).append("[").append(unit).append("]: ");
-    buf.append(String.format("mean: %.2f", mean));
-    if(weights > 1) {
-      buf.append(String.format(" +- %.2f", getStandardDeviation()));
-      buf.append(String.format(" (%.2f%%)", 100. * getStandardDeviation() / mean));
+    final double location = getLocation(), scale = getScale();
+    buf.append(estimator.name().toLowerCase()).append(String.format(": %.2f", location));
+    if(weights > 1 && scale == scale) { // Not NaN
+      buf.append(String.format(" +- %.2f", scale));
+      buf.append(String.format(" (%.2f%%)", 100. * scale / location));
+    }
+    if(lower == lower) { // Not NaN
+      buf.append(String.format(" ci: [%.2f .. %.2f]", lower, upper));
     }
     buf.append(String.format(" min: %.2f max: %.2f weight: %.0f", min, max, weights));
+    if(quantiles) {
+      buf.append(String.format(" median: %.2f p90: %.2f p99: %.2f", getQuantile(.5), getQuantile(.9), getQuantile(.99)));
+    }
     return buf.toString();
   }
 
@@ -106,15 +335,99 @@ public class AggregateMeasurements {
     return mean;
   }
 
+  /**
+   * Get the location, using the chosen estimator.
+   * 
+   * @return Location, the mean by default.
+   */
+  public double getLocation() {
+    switch(estimator){
+    case MOM:
+      return gmeans != null ? groupMedian(gmeans) : mean;
+    case TRIMMED:
+      return digest != null ? digest.trimmedMean(TRIM) : mean;
+    case HUBER:
+      return digest != null ? digest.huberMean(getScale()) : mean;
+    default:
+      return mean;
+    }
+  }
+
+  /**
+   * Get the scale, using the chosen estimator.
+   * 
+   * @return Scale, the standard deviation by default.
+   */
+  public double getScale() {
+    switch(estimator){
+    case MOM:
+      if(gmeans == null) {
+        return getStandardDeviation();
+      }
+      double[] sds = new double[GROUPS];
+      for(int g = 0; g < GROUPS; g++) {
+        sds[g] = Math.sqrt(gsqdevs[g] / (gweights[g] - gsqweights[g] / gweights[g]));
+      }
+      return groupMedian(sds);
+    case TRIMMED:
+    case HUBER:
+      return digest != null ? (digest.quantile(.75) - digest.quantile(.25)) / IQR_SCALE : getStandardDeviation();
+    default:
+      return getStandardDeviation();
+    }
+  }
+
+  /**
+   * Median of a statistic of the groups of the median of means, ignoring
+   * groups where it is not defined.
+   * 
+   * @param stats Statistic of each group
+   * @return Median, NaN if no group is defined
+   */
+  private double groupMedian(double[] stats) {
+    double[] valid = new double[GROUPS];
+    int n = 0;
+    for(int g = 0; g < GROUPS; g++) {
+      if(gweights[g] > 0 && stats[g] == stats[g]) { // Not NaN
+        valid[n++] = stats[g];
+      }
+    }
+    if(n == 0) {
+      return Double.NaN;
+    }
+    Arrays.sort(valid, 0, n);
+    return (n & 1) == 1 ? valid[n >> 1] : .5 * (valid[(n >> 1) - 1] + valid[n >> 1]);
+  }
+
+  /**
+   * Get the estimator of location and scale.
+   * 
+   * @return Estimator
+   */
+  public Estimator getEstimator() {
+    return estimator;
+  }
+
+  /**
+   * Estimate a quantile of the values, e.g. 0.5 for the median.
+   * 
+   * @param q Quantile, in [0:1]
+   * @return Estimated quantile, NaN if quantiles are not enabled.
+   */
+  public double getQuantile(double q) {
+    return digest != null ? digest.quantile(q) : Double.NaN;
+  }
+
   /**
    * Compute the sample standard deviation, with Bessel's correction.
    * 
    * @return Standard deviation
    */
   public double getStandardDeviation() {
-    // FIXME: is this numerically stable & accurate?
-    // FIXME: can we do the same update trick, and compute w*w-sqw directly?
-    return Math.sqrt(sqdev * weights / (weights * weights - sqweights));
+    // The squared deviations are updated incrementally, so they do not suffer
+    // from the cancellation of sum(x^2) - sum(x)^2. For the correction term,
+    // dividing by weights avoids computing (and overflowing) weights^2.
+    return Math.sqrt(sqdev / (weights - sqweights / weights));
   }
 
   /**
@@ -126,6 +439,42 @@ public class AggregateMeasurements {
     return weights;
   }
 
+  /**
+   * Get the weighted sum of squared deviations from the mean.
+   * 
+   * @return Sum of squared deviations
+   */
+  public double getSquaredDeviations() {
+    return sqdev;
+  }
+
+  /**
+   * Get the number of values added.
+   * 
+   * @return Number of values
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Get the unweighted mean, i.e. with every value weighted 1.
+   * 
+   * @return Unweighted mean
+   */
+  public double getUnweightedMean() {
+    return umean;
+  }
+
+  /**
+   * Get the unweighted sum of squared deviations from the unweighted mean.
+   * 
+   * @return Sum of squared deviations
+   */
+  public double getUnweightedSquaredDeviations() {
+    return usqdev;
+  }
+
   /**
    * Get the unit of the measurements.
    * 
@@ -1,22 +1,35 @@
 package com.googlecode.caliperanalyze;
 
+import java.io.CharArrayReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
-import com.google.caliper.json.GsonModule;
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Measurement;
 import com.google.caliper.model.Trial;
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
-import com.google.inject.Guice;
-import com.google.inject.Injector;
+import com.googlecode.caliperanalyze.util.CaliperTypeAdapters;
+import com.googlecode.caliperanalyze.util.TrialOffsetIndex;
 
 /**
  * Class to load results from Calipers output directory.
  * 
+ * Instances are thread safe, multiple files can be read concurrently.
+ * 
  * @author Erich Schubert
  */
 public class CaliperResultsReader {
@@ -25,16 +38,33 @@ public class CaliperResultsReader {
    */
   Gson gson;
 
+  /**
+   * Character set of Caliper result files.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Filter of trials, may be {@code null}.
+   */
+  private final TrialFilter filter;
+
   /**
    * Constructor.
    */
   public CaliperResultsReader() {
-    super();
-    // Load Calipers Gson module:
-    Injector injector = Guice.createInjector(new GsonModule());
+    this(null);
+  }
 
-    // The modified gson object
-    gson = injector.getInstance(Gson.class);
+  /**
+   * Constructor.
+   * 
+   * @param filter Filter of trials, {@code null} to read all trials
+   */
+  public CaliperResultsReader(TrialFilter filter) {
+    super();
+    // Hand-written adapters, much faster to set up than Calipers Guice module:
+    gson = CaliperTypeAdapters.createGson();
+    this.filter = filter;
   }
 
   /**
@@ -47,14 +77,167 @@ public class CaliperResultsReader {
    * @throws IOException On I/O errors (e.g. incomplete files!)
    */
   public void readTrialsFromJSON(File file, Collection<Trial> output) throws IOException {
+    JsonReader reader = openJSON(file);
+    try {
+      reader.beginArray();
+      while(reader.hasNext()) {
+        Trial t = gson.<Trial> fromJson(reader, Trial.class);
+        if(t != null && (filter == null || filter.accept(t.scenario().benchmarkSpec()))) {
+          output.add(t);
+        }
+      }
+      reader.endArray();
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Stream trials from a JSON file to a handler, one trial at a time. Only the
+   * current trial is kept in memory, and only the benchmark specification and
+   * the measurements are decoded; the run, instrument, host and VM subtrees
+   * are skipped. With a filter, the measurements of rejected trials are
+   * skipped, too.
+   * 
+   * Incomplete trials (without a benchmark specification or measurements) are
+   * skipped. For incomplete files, all complete trials will be passed to the
+   * handler before the exception is thrown.
+   * 
+   * @param file File to read
+   * @param handler Handler to process each trial
+   * @throws IOException On I/O errors (e.g. incomplete files!)
+   */
+  public void readTrialsFromJSON(File file, TrialHandler handler) throws IOException {
+    JsonReader reader = openJSON(file);
+    try {
+      reader.beginArray();
+      while(reader.hasNext()) {
+        readTrial(reader, handler);
+      }
+      reader.endArray();
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Decode a range of trials from a JSON file, using an offset index. Only the
+   * requested trials are decoded.
+   * 
+   * @param file File to read
+   * @param index Offset index of the file
+   * @param begin First trial to read
+   * @param end Trial to stop at (exclusive)
+   * @param handler Handler to process each trial
+   * @throws IOException On I/O errors
+   */
+  public void readTrialsFromJSON(File file, TrialOffsetIndex index, int begin, int end, TrialHandler handler) throws IOException {
+    if(begin >= end) {
+      return;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      final long first = index.getStart(begin), last = index.getEnd(end - 1);
+      // Map the whole range at once, if possible:
+      ByteBuffer buf = null;
+      if(last - first <= Integer.MAX_VALUE) {
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, first, last - first);
+      }
+      for(int i = begin; i < end; i++) {
+        final long start = index.getStart(i);
+        final int len = (int) (index.getEnd(i) - start);
+        ByteBuffer slice;
+        if(buf != null) {
+          final int off = (int) (start - first);
+          slice = buf.duplicate();
+          // Cast, to not depend on the covariant return types of Java 9:
+          ((Buffer) slice).limit(off + len).position(off);
+        }
+        else {
+          slice = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+        }
+        CharBuffer chars = UTF8.decode(slice);
+        JsonReader reader = new JsonReader(new CharArrayReader(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining()));
+        reader.setLenient(true);
+        readTrial(reader, handler);
+      }
+    }
+  }
+
+  /**
+   * Decode the benchmark specification and the measurements of the next trial,
+   * and pass them on to the handler. All other fields are skipped without
+   * decoding them, and so are the measurements of trials rejected by the
+   * filter (Caliper writes the scenario before the measurements).
+   * 
+   * @param reader JSON reader, positioned at a trial
+   * @param handler Handler
+   * @throws JsonSyntaxException On malformed or incomplete JSON, as
+   *         {@link Gson#fromJson(JsonReader, java.lang.reflect.Type)}
+   */
+  private void readTrial(JsonReader reader, TrialHandler handler) {
+    try {
+      if(CaliperTypeAdapters.skipNull(reader)) {
+        return;
+      }
+      BenchmarkSpec spec = null;
+      List<Measurement> measurements = null;
+      boolean rejected = false;
+      reader.beginObject();
+      while(reader.hasNext()) {
+        String name = reader.nextName();
+        if("scenario".equals(name) && !CaliperTypeAdapters.skipNull(reader)) {
+          reader.beginObject();
+          while(reader.hasNext()) {
+            if("benchmarkSpec".equals(reader.nextName())) {
+              spec = CaliperTypeAdapters.BENCHMARK_SPEC.read(reader);
+              rejected = spec != null && filter != null && !filter.accept(spec);
+            }
+            else {
+              reader.skipValue();
+            }
+          }
+          reader.endObject();
+        }
+        else if("measurements".equals(name) && !rejected && !CaliperTypeAdapters.skipNull(reader)) {
+          measurements = new ArrayList<>();
+          reader.beginArray();
+          while(reader.hasNext()) {
+            Measurement m = CaliperTypeAdapters.MEASUREMENT.read(reader);
+            if(m != null) {
+              measurements.add(m);
+            }
+          }
+          reader.endArray();
+        }
+        else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if(spec != null && measurements != null && !rejected) {
+        handler.handleTrial(spec, measurements);
+      }
+    }
+    catch(IllegalStateException | IOException e) {
+      // Same exceptions as Gson.fromJson:
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  /**
+   * Open a JSON file for reading.
+   * 
+   * @param file File to open
+   * @return Lenient JSON reader
+   * @throws IOException On I/O errors
+   */
+  private static JsonReader openJSON(File file) throws IOException {
     InputStream in = new FileInputStream(file);
     JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
     reader.setLenient(true);
-    reader.beginArray();
-    while(reader.hasNext()) {
-      output.add(gson.<Trial> fromJson(reader, Trial.class));
-    }
-    reader.endArray();
-    reader.close();
+    return reader;
   }
 }
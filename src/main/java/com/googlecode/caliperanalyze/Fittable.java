@@ -0,0 +1,21 @@
+package com.googlecode.caliperanalyze;
+
+/**
+ * A predictor that fits a trend to the measurements added to it.
+ * 
+ * The fit is computed on first use and cached, so that predictors can be
+ * fitted in parallel first, and formatted afterwards by {@code toString()}
+ * without refitting. Fitting different predictors is independent.
+ * 
+ * @author Erich Schubert
+ * 
+ * @param <T> Type of the fitted trend
+ */
+public interface Fittable<T> {
+  /**
+   * Get the fitted trend, fitting it if necessary.
+   * 
+   * @return Trend
+   */
+  T getTrend();
+}
@@ -0,0 +1,74 @@
+package com.googlecode.caliperanalyze;
+
+/**
+ * A fitted joint trend: a linear combination of basis terms of multiple
+ * parameters, as fitted by {@link MultivariateTrendPredictor}.
+ * 
+ * @author Erich Schubert
+ */
+public class JointTrend {
+  /** Names of the terms with non-zero coefficients */
+  final String[] terms;
+
+  /** Coefficients */
+  final double[] coef;
+
+  /** Regularization parameter lambda */
+  final double lambda;
+
+  /**
+   * Constructor.
+   * 
+   * @param names Names of the selected terms, e.g. {@code LINEAR(n)*LOG2N(m)}
+   * @param scores Coefficients of the terms, zero if not used.
+   * @param lambda Regularization parameter lambda.
+   */
+  JointTrend(String[] names, double[] scores, double lambda) {
+    super();
+    int k = 0;
+    for (int i = 0; i < names.length; i++) {
+      if (scores[i] > 0 || scores[i] < 0) {
+        ++k;
+      }
+    }
+    this.terms = new String[k];
+    this.coef = new double[k];
+    for (int i = 0, j = 0; i < names.length; i++) {
+      if (scores[i] > 0 || scores[i] < 0) {
+        terms[j] = names[i];
+        coef[j++] = scores[i];
+      }
+    }
+    this.lambda = lambda;
+  }
+
+  /**
+   * Get the regularization parameter lambda that was used.
+   * 
+   * @return Lambda
+   */
+  public double getLambda() {
+    return lambda;
+  }
+
+  /**
+   * Get the number of terms with non-zero coefficients.
+   * 
+   * @return Number of terms
+   */
+  public int size() {
+    return terms.length;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < terms.length; i++) {
+      if (i > 0) {
+        buf.append(' ');
+      }
+      buf.append(terms[i]).append(": ").append(coef[i]);
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,254 @@
+package com.googlecode.caliperanalyze;
+
+import java.util.Arrays;
+
+import com.googlecode.caliperanalyze.TrendPredictor.Function;
+import com.googlecode.caliperanalyze.util.BestSubsetSelection;
+import com.googlecode.caliperanalyze.util.LeastSquaresFit;
+import com.googlecode.caliperanalyze.util.NormalEquations;
+import com.googlecode.caliperanalyze.util.RidgePath;
+
+/**
+ * Predict the joint trend of measurements in multiple numeric parameters, e.g.
+ * the runtime of a join depending on the sizes of both inputs.
+ * 
+ * The model is linear in tensor-product basis terms: the constant, each basis
+ * function of a single parameter, and the products of two basis functions of
+ * different parameters (e.g. {@code LINEAR(n)*LOG2N(m)}). Higher-order
+ * interactions are not modeled. The terms are selected by exact best subset
+ * search with AIC or BIC (BIC is used unless AIC was chosen), limited to
+ * {@link #MAX_TERMS} terms to keep the search feasible.
+ * 
+ * Of the options of {@link TrendPredictor}, the regularization and the
+ * weighting by repetitions apply; greedy selection, non-negative least squares
+ * and robust fits are not supported.
+ * 
+ * @author Erich Schubert
+ */
+public class MultivariateTrendPredictor implements Fittable<JointTrend> {
+  /**
+   * Basis functions of a single parameter. The other logarithms are collinear
+   * to LOG2N, cubic and exponential terms overflow in products.
+   */
+  private static final Function[] FACTORS = { Function.LOG2N, Function.LINEAR, Function.NLOG2N, Function.QUADRATIC };
+
+  /** Maximum number of terms in a model. */
+  static final int MAX_TERMS = 4;
+
+  /** Parameter names */
+  final String[] names;
+
+  /**
+   * Basis terms: for each term and parameter, the index of the factor, or -1
+   * if the term does not depend on the parameter.
+   */
+  final int[][] terms;
+
+  /** Sufficient statistics for all terms. */
+  final NormalEquations equations;
+
+  /** Terms evaluated at the last targets. */
+  final double[] row;
+
+  /** Factors evaluated at the last targets, for each parameter. */
+  final double[][] factors;
+
+  /** Number of observations. */
+  int numvalues = 0;
+
+  /** Metadata */
+  String unit = null, description = null;
+
+  /** Fitted trend, {@code null} if not yet fitted */
+  JointTrend trend = null;
+
+  /**
+   * Constructor.
+   * 
+   * @param names Names of the numeric parameters
+   */
+  public MultivariateTrendPredictor(String[] names) {
+    super();
+    this.names = names;
+    final int dim = names.length, nf = FACTORS.length;
+    terms = new int[1 + dim * nf + (dim * (dim - 1) >> 1) * nf * nf][dim];
+    int t = 0;
+    // Constant
+    Arrays.fill(terms[t++], -1);
+    // Single parameters
+    for (int v = 0; v < dim; v++) {
+      for (int f = 0; f < nf; f++, t++) {
+        Arrays.fill(terms[t], -1);
+        terms[t][v] = f;
+      }
+    }
+    // Pairwise products
+    for (int v = 0; v < dim; v++) {
+      for (int w = v + 1; w < dim; w++) {
+        for (int f = 0; f < nf; f++) {
+          for (int g = 0; g < nf; g++, t++) {
+            Arrays.fill(terms[t], -1);
+            terms[t][v] = f;
+            terms[t][w] = g;
+          }
+        }
+      }
+    }
+    equations = new NormalEquations(terms.length);
+    row = new double[terms.length];
+    factors = new double[dim][nf];
+  }
+
+  /**
+   * Add the measurements of a scenario, using its aggregate.
+   * 
+   * @param store Trial store
+   * @param scenario Scenario number
+   * @param targets Values of the parameters this was measured at, not NaN.
+   * @return {@code this}
+   */
+  public MultivariateTrendPredictor add(TrialStore store, int scenario, double[] targets) {
+    final AggregateMeasurements agg = store.getAggregate(scenario);
+    if (agg.getCount() == 0) {
+      return this;
+    }
+    checkMetadata(store.getUnit(scenario), store.getDescription(scenario));
+    trend = null;
+    // All measurements of a scenario share the same row.
+    for (int v = 0; v < names.length; v++) {
+      for (int f = 0; f < FACTORS.length; f++) {
+        factors[v][f] = FACTORS[f].map(targets[v]);
+      }
+    }
+    for (int t = 0; t < terms.length; t++) {
+      double prod = 1.;
+      for (int v = 0; v < names.length; v++) {
+        if (terms[t][v] >= 0) {
+          prod *= factors[v][terms[t][v]];
+        }
+      }
+      row[t] = prod;
+    }
+    numvalues += TrendPredictor.addAggregate(equations, row, agg);
+    return this;
+  }
+
+  /**
+   * Sanity check the unit and description of new measurements.
+   * 
+   * @param unit Unit
+   * @param description Description
+   */
+  private void checkMetadata(String unit, String description) {
+    if (this.unit == null) {
+      this.unit = unit;
+    } else if (!this.unit.equals(unit)) {
+      throw new RuntimeException("Inconsistent units are not supported.");
+    }
+    if (this.description == null) {
+      this.description = description;
+    } else if (!this.description.equals(description)) {
+      throw new RuntimeException("Multiple types of measuresments are not supported.");
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    buf.append(description).append("[").append(unit).append("]: ");
+    buf.append(String.format("%d measurements ", numvalues));
+    final JointTrend trend = getTrend();
+    if (TrendPredictor.selectLambda && trend.size() > 0) {
+      buf.append(String.format("lambda: %.3g ", trend.getLambda()));
+    }
+    buf.append(trend);
+    return buf.toString();
+  }
+
+  /**
+   * Get the fitted trend, fitting it if necessary.
+   * 
+   * @return Trend
+   */
+  @Override
+  public JointTrend getTrend() {
+    if (trend == null) {
+      trend = findFit();
+    }
+    return trend;
+  }
+
+  /**
+   * Select the terms by best subset search, and fit their coefficients.
+   * 
+   * @return Trend
+   */
+  private JointTrend findFit() {
+    int[] candidates = new int[terms.length];
+    for (int t = 0; t < terms.length; t++) {
+      candidates[t] = t;
+    }
+    final double penalty = TrendPredictor.selection == TrendPredictor.Selection.AIC ? 2. : Math.log(equations.getCount());
+    int[] cols = new BestSubsetSelection(equations, candidates, penalty, MAX_TERMS, true).run();
+    final double lambda = TrendPredictor.selectLambda && cols.length > 0 ? new RidgePath(equations, cols).selectLambda() : TrendPredictor.lambda;
+    String[] names = new String[cols.length];
+    double[] scores = new double[cols.length];
+    if (cols.length > 0) {
+      LeastSquaresFit fit = new LeastSquaresFit(cols.length, TrendPredictor.selectLambda);
+      fit.factor(equations, cols, lambda);
+      fit.solve(scores);
+    }
+    for (int i = 0; i < cols.length; i++) {
+      names[i] = appendTerm(new StringBuilder(), cols[i]).toString();
+    }
+    return new JointTrend(names, scores, lambda);
+  }
+
+  /**
+   * Append the name of a term, e.g. {@code LINEAR(n)*LOG2N(m)}.
+   * 
+   * @param buf Output buffer
+   * @param t Term
+   * @return {@code buf}
+   */
+  private StringBuilder appendTerm(StringBuilder buf, int t) {
+    boolean constant = true;
+    for (int v = 0; v < names.length; v++) {
+      if (terms[t][v] >= 0) {
+        if (!constant) {
+          buf.append('*');
+        }
+        constant = false;
+        buf.append(FACTORS[terms[t][v]]).append('(').append(names[v]).append(')');
+      }
+    }
+    return constant ? buf.append(Function.CONST) : buf;
+  }
+
+  /**
+   * Get the unit of the measurements.
+   * 
+   * @return Unit
+   */
+  public String getUnit() {
+    return unit;
+  }
+
+  /**
+   * Get the description of the measurements, e.g. {@code "runtime"}.
+   * 
+   * @return Description
+   */
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * Get the number of measurements.
+   * 
+   * @return Number of measurements
+   */
+  public int getNumMeasurements() {
+    return numvalues;
+  }
+}
@@ -0,0 +1,393 @@
+package com.googlecode.caliperanalyze;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Value;
+
+/**
+ * Binary cache of the parsed contents of a result file.
+ * 
+ * The cache is stored in a hidden sidecar file next to the result file, and
+ * is only used when the path, size and modification time of the result file
+ * are unchanged. It contains only what is used for analysis: the benchmark
+ * specifications and the measurements. All strings are stored once in a
+ * dictionary, and the measurements are stored column by column, so loading
+ * mostly consists of bulk reads of primitive arrays.
+ * 
+ * An instance can be filled as a {@link TrialHandler} and then written, or
+ * read from disk and replayed to another handler.
+ * 
+ * @author Erich Schubert
+ */
+public class ResultsCache implements TrialHandler {
+  /**
+   * File format magic number.
+   */
+  private static final int MAGIC = 0xCA11CAC4;
+
+  /**
+   * File format version.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * Initial size for allocations.
+   */
+  private static final int INITIAL_SIZE = 21;
+
+  /** String dictionary */
+  ArrayList<String> strings = new ArrayList<>();
+
+  /** Reverse lookup for the dictionary, only while recording */
+  Map<String, Integer> stringmap = new HashMap<>();
+
+  /** Scenarios, as string codes: class, method, then name and value pairs */
+  ArrayList<int[]> scenarios = new ArrayList<>();
+
+  /** Reverse lookup for the scenarios, only while recording */
+  Map<BenchmarkSpec, Integer> scenariomap = new HashMap<>();
+
+  /** Trial columns: scenario, number of measurements */
+  int[] trialScenario = new int[INITIAL_SIZE], trialSize = new int[INITIAL_SIZE];
+
+  /** Number of trials */
+  int numtrials = 0;
+
+  /** Measurement columns: magnitude, weight */
+  double[] magnitudes = new double[INITIAL_SIZE], weights = new double[INITIAL_SIZE];
+
+  /** Measurement columns: unit and description codes */
+  int[] units = new int[INITIAL_SIZE], descriptions = new int[INITIAL_SIZE];
+
+  /** Number of measurements */
+  int nummeasurements = 0;
+
+  /** The result file was complete (i.e. not truncated). */
+  boolean complete = true;
+
+  /** All trials can be represented in the cache */
+  boolean cacheable = true;
+
+  /** Result file */
+  File source;
+
+  /** Size and modification time of the result file when reading started */
+  long length, lastModified;
+
+  /**
+   * Constructor, for recording the trials of a result file.
+   * 
+   * @param source Result file that will be read
+   */
+  public ResultsCache(File source) {
+    super();
+    // Get these first, in case the file is still growing:
+    this.source = source;
+    this.length = source.length();
+    this.lastModified = source.lastModified();
+  }
+
+  /**
+   * Constructor, for reading from disk.
+   */
+  private ResultsCache() {
+    super();
+  }
+
+  @Override
+  public void handleTrial(BenchmarkSpec spec, List<Measurement> measurements) {
+    if(!cacheable) {
+      return;
+    }
+    Integer scenario = scenariomap.get(spec);
+    if(scenario == null) {
+      if(spec.className() == null || spec.methodName() == null) {
+        cacheable = false;
+        return;
+      }
+      int[] codes = new int[2 + 2 * spec.parameters().size()];
+      codes[0] = encode(spec.className());
+      codes[1] = encode(spec.methodName());
+      int i = 2;
+      for(Map.Entry<String, String> entry : spec.parameters().entrySet()) {
+        codes[i++] = encode(entry.getKey());
+        codes[i++] = encode(entry.getValue());
+      }
+      scenario = scenarios.size();
+      scenarios.add(codes);
+      scenariomap.put(spec, scenario);
+    }
+    if(numtrials == trialScenario.length) {
+      int newsize = (trialScenario.length << 1) + 1;
+      trialScenario = Arrays.copyOf(trialScenario, newsize);
+      trialSize = Arrays.copyOf(trialSize, newsize);
+    }
+    trialScenario[numtrials] = scenario;
+    trialSize[numtrials] = measurements.size();
+    ++numtrials;
+    for(Measurement m : measurements) {
+      // Only keep what we can restore later.
+      if(m.value() == null || m.value().unit() == null || m.description() == null || !(m.weight() > 0)) {
+        cacheable = false;
+        return;
+      }
+      if(nummeasurements == magnitudes.length) {
+        int newsize = (magnitudes.length << 1) + 1;
+        magnitudes = Arrays.copyOf(magnitudes, newsize);
+        weights = Arrays.copyOf(weights, newsize);
+        units = Arrays.copyOf(units, newsize);
+        descriptions = Arrays.copyOf(descriptions, newsize);
+      }
+      magnitudes[nummeasurements] = m.value().magnitude();
+      weights[nummeasurements] = m.weight();
+      units[nummeasurements] = encode(m.value().unit());
+      descriptions[nummeasurements] = encode(m.description());
+      ++nummeasurements;
+    }
+  }
+
+  /**
+   * Get the dictionary code of a string.
+   * 
+   * @param s String
+   * @return Code
+   */
+  private int encode(String s) {
+    Integer code = stringmap.get(s);
+    if(code == null) {
+      code = strings.size();
+      strings.add(s);
+      stringmap.put(s, code);
+    }
+    return code;
+  }
+
+  /**
+   * Pass the cached trials on to a handler, in their original order.
+   * 
+   * @param handler Handler
+   */
+  public void replay(TrialHandler handler) {
+    BenchmarkSpec[] specs = new BenchmarkSpec[scenarios.size()];
+    for(int i = 0; i < specs.length; i++) {
+      int[] codes = scenarios.get(i);
+      BenchmarkSpec.Builder builder = new BenchmarkSpec.Builder() //
+      .className(strings.get(codes[0])).methodName(strings.get(codes[1]));
+      for(int j = 2; j < codes.length; j += 2) {
+        builder.addParameter(strings.get(codes[j]), strings.get(codes[j + 1]));
+      }
+      specs[i] = builder.build();
+    }
+    for(int t = 0, m = 0; t < numtrials; t++) {
+      Measurement[] measurements = new Measurement[trialSize[t]];
+      for(int j = 0; j < measurements.length; j++, m++) {
+        measurements[j] = new Measurement.Builder() //
+        .value(Value.create(magnitudes[m], strings.get(units[m]))) //
+        .weight(weights[m]).description(strings.get(descriptions[m])).build();
+      }
+      handler.handleTrial(specs[trialScenario[t]], Arrays.asList(measurements));
+    }
+  }
+
+  /**
+   * Check whether the result file was complete when it was cached.
+   * 
+   * @return {@code false} for truncated files
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Get the cache file for a result file.
+   * 
+   * @param source Result file
+   * @return Cache file
+   */
+  public static File getCacheFile(File source) {
+    return new File(source.getAbsoluteFile().getParentFile(), "." + source.getName() + ".cache");
+  }
+
+  /**
+   * Write the cache for the result file. Errors are reported, but not fatal.
+   * 
+   * @param complete {@code false} if the result file was truncated
+   */
+  public void write(boolean complete) {
+    if(!cacheable) {
+      return;
+    }
+    this.complete = complete;
+    File file = getCacheFile(source);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(source.getCanonicalPath());
+      out.writeLong(length);
+      out.writeLong(lastModified);
+      out.writeBoolean(complete);
+      out.writeInt(strings.size());
+      for(String s : strings) {
+        out.writeUTF(s);
+      }
+      out.writeInt(scenarios.size());
+      for(int[] codes : scenarios) {
+        out.writeInt(codes.length);
+        writeInts(out, codes, codes.length);
+      }
+      out.writeInt(numtrials);
+      writeInts(out, trialScenario, numtrials);
+      writeInts(out, trialSize, numtrials);
+      out.writeInt(nummeasurements);
+      writeDoubles(out, magnitudes, nummeasurements);
+      writeDoubles(out, weights, nummeasurements);
+      writeInts(out, units, nummeasurements);
+      writeInts(out, descriptions, nummeasurements);
+    }
+    catch(IOException | RuntimeException e) {
+      System.err.println("Note: could not write cache file " + file + ": " + e.getMessage());
+      file.delete();
+    }
+  }
+
+  /**
+   * Read the cache for a result file.
+   * 
+   * @param source Result file
+   * @return Cache, or {@code null} if there is no up to date cache.
+   */
+  public static ResultsCache read(File source) {
+    File file = getCacheFile(source);
+    if(!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      if(!in.readUTF().equals(source.getCanonicalPath()) //
+          || in.readLong() != source.length() //
+          || in.readLong() != source.lastModified()) {
+        return null; // Stale
+      }
+      ResultsCache cache = new ResultsCache();
+      cache.stringmap = null;
+      cache.scenariomap = null;
+      cache.complete = in.readBoolean();
+      final int numstrings = in.readInt();
+      cache.strings.ensureCapacity(numstrings);
+      for(int i = 0; i < numstrings; i++) {
+        cache.strings.add(in.readUTF());
+      }
+      final int numscenarios = in.readInt();
+      for(int i = 0; i < numscenarios; i++) {
+        cache.scenarios.add(readInts(in, in.readInt()));
+      }
+      cache.numtrials = in.readInt();
+      cache.trialScenario = readInts(in, cache.numtrials);
+      cache.trialSize = readInts(in, cache.numtrials);
+      cache.nummeasurements = in.readInt();
+      cache.magnitudes = readDoubles(in, cache.nummeasurements);
+      cache.weights = readDoubles(in, cache.nummeasurements);
+      cache.units = readInts(in, cache.nummeasurements);
+      cache.descriptions = readInts(in, cache.nummeasurements);
+      return cache;
+    }
+    catch(IOException | RuntimeException e) {
+      System.err.println("Note: ignoring unreadable cache file " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Size of blocks for bulk reading and writing.
+   */
+  private static final int BLOCK_SIZE = 1 << 13;
+
+  /**
+   * Write a column of integers.
+   * 
+   * @param out Output
+   * @param data Data
+   * @param len Number of values to write
+   * @throws IOException On I/O errors
+   */
+  private static void writeInts(DataOutputStream out, int[] data, int len) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE << 2);
+    for(int off = 0; off < len; off += BLOCK_SIZE) {
+      final int n = Math.min(BLOCK_SIZE, len - off);
+      buf.asIntBuffer().put(data, off, n);
+      out.write(buf.array(), 0, n << 2);
+    }
+  }
+
+  /**
+   * Write a column of doubles.
+   * 
+   * @param out Output
+   * @param data Data
+   * @param len Number of values to write
+   * @throws IOException On I/O errors
+   */
+  private static void writeDoubles(DataOutputStream out, double[] data, int len) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE << 3);
+    for(int off = 0; off < len; off += BLOCK_SIZE) {
+      final int n = Math.min(BLOCK_SIZE, len - off);
+      buf.asDoubleBuffer().put(data, off, n);
+      out.write(buf.array(), 0, n << 3);
+    }
+  }
+
+  /**
+   * Read a column of integers.
+   * 
+   * @param in Input
+   * @param len Number of values
+   * @return Data
+   * @throws IOException On I/O errors
+   */
+  private static int[] readInts(DataInputStream in, int len) throws IOException {
+    int[] data = new int[len];
+    ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE << 2);
+    for(int off = 0; off < len; off += BLOCK_SIZE) {
+      final int n = Math.min(BLOCK_SIZE, len - off);
+      in.readFully(buf.array(), 0, n << 2);
+      buf.asIntBuffer().get(data, off, n);
+    }
+    return data;
+  }
+
+  /**
+   * Read a column of doubles.
+   * 
+   * @param in Input
+   * @param len Number of values
+   * @return Data
+   * @throws IOException On I/O errors
+   */
+  private static double[] readDoubles(DataInputStream in, int len) throws IOException {
+    double[] data = new double[len];
+    ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE << 3);
+    for(int off = 0; off < len; off += BLOCK_SIZE) {
+      final int n = Math.min(BLOCK_SIZE, len - off);
+      in.readFully(buf.array(), 0, n << 3);
+      buf.asDoubleBuffer().get(data, off, n);
+    }
+    return data;
+  }
+}
@@ -0,0 +1,269 @@
+package com.googlecode.caliperanalyze;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Index of the scenarios by their variate values.
+ * 
+ * Scenario numbers are the same as in the {@link TrialStore}.
+ * 
+ * The values of each variate are sorted alphabetically and replaced by their
+ * rank, so each scenario is described by a tuple of small integers. Scenarios
+ * can then be grouped by any subset of the variates with a single hash-based
+ * pass, and only combinations of values that actually occur are visited.
+ * 
+ * Scenarios where a variate is not defined have the first code of this
+ * variate, with the value {@link TrialStore#MISSING}.
+ * 
+ * @author Erich Schubert
+ */
+public class ScenarioIndex {
+  /** Variate names */
+  final List<String> variates;
+
+  /** Sorted values of each variate */
+  final String[][] values;
+
+  /** Number of scenarios */
+  final int numscenarios;
+
+  /** Value codes of each scenario (scenario, variate) */
+  final int[][] codes;
+
+  /**
+   * Constructor.
+   * 
+   * @param store Trial store to index
+   * @param variates Variate names
+   * @param spec Values of each parameter
+   */
+  public ScenarioIndex(TrialStore store, List<String> variates, SetMultimap<String, String> spec) {
+    super();
+    this.variates = variates;
+    final int dim = variates.size();
+    this.values = new String[dim][];
+    this.numscenarios = store.numScenarios();
+    this.codes = new int[numscenarios][dim];
+    // Translation of store codes to ranks, offset by one for missing values.
+    int[] ranks = new int[store.numCodes() + 1];
+    for(int d = 0; d < dim; d++) {
+      final int slot = store.getParameterSlot(variates.get(d));
+      boolean partial = false;
+      for(int i = 0; i < numscenarios && !partial; i++) {
+        partial = store.getParameterCode(i, slot) < 0;
+      }
+      String[] vals = spec.get(variates.get(d)).toArray(new String[0]);
+      Arrays.sort(vals); // Alphabetic.
+      final int off = partial ? 1 : 0;
+      values[d] = new String[vals.length + off];
+      System.arraycopy(vals, 0, values[d], off, vals.length);
+      Map<String, Integer> map = new HashMap<>(vals.length << 1);
+      for(int i = 0; i < vals.length; i++) {
+        map.put(vals[i], i + off);
+      }
+      // Missing values by their code, as "-" may be an actual value, too.
+      if(partial) {
+        values[d][0] = TrialStore.MISSING;
+      }
+      ranks[0] = partial ? 0 : -1;
+      for(int c = 0; c < store.numCodes(); c++) {
+        Integer rank = map.get(store.decode(c));
+        ranks[c + 1] = rank != null ? rank : -1;
+      }
+      for(int i = 0; i < numscenarios; i++) {
+        codes[i][d] = ranks[store.getParameterCode(i, slot) + 1];
+      }
+    }
+  }
+
+  /**
+   * Group the scenarios by some of the variates, in a single pass.
+   * 
+   * @param dims Variates to group by (positions in the variate list)
+   * @return Non-empty groups, sorted by their values in the order of
+   *         {@code dims}
+   */
+  public List<Group> groupBy(final int[] dims) {
+    Map<Group, Group> groups = new HashMap<>();
+    for(int i = 0; i < numscenarios; i++) {
+      int[] key = new int[dims.length];
+      for(int j = 0; j < dims.length; j++) {
+        key[j] = codes[i][dims[j]];
+      }
+      Group probe = new Group(key);
+      Group group = groups.get(probe);
+      if(group == null) {
+        groups.put(probe, group = probe);
+      }
+      group.add(i);
+    }
+    List<Group> sorted = new ArrayList<>(groups.keySet());
+    Collections.sort(sorted, new Comparator<Group>() {
+      @Override
+      public int compare(Group o1, Group o2) {
+        for(int j = 0; j < dims.length; j++) {
+          if(o1.key[j] != o2.key[j]) {
+            return Integer.compare(o1.key[j], o2.key[j]);
+          }
+        }
+        return 0;
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Get the number of variates.
+   * 
+   * @return Number of variates
+   */
+  public int numVariates() {
+    return values.length;
+  }
+
+  /**
+   * Get the number of scenarios.
+   * 
+   * @return Number of scenarios
+   */
+  public int size() {
+    return numscenarios;
+  }
+
+  /**
+   * Get the number of distinct values of a variate.
+   * 
+   * @param dim Variate position
+   * @return Number of values
+   */
+  public int numValues(int dim) {
+    return values[dim].length;
+  }
+
+  /**
+   * Get the name of a variate.
+   * 
+   * @param dim Variate position
+   * @return Name
+   */
+  public String getVariate(int dim) {
+    return variates.get(dim);
+  }
+
+  /**
+   * Get the value of a variate for a given code.
+   * 
+   * @param dim Variate position
+   * @param code Value code
+   * @return Value
+   */
+  public String getValue(int dim, int code) {
+    return values[dim][code];
+  }
+
+  /**
+   * Test if a value code stands for a missing value.
+   * 
+   * @param dim Variate position
+   * @param code Value code
+   * @return {@code true} if the variate is not defined
+   */
+  public boolean isMissing(int dim, int code) {
+    return values[dim][code] == TrialStore.MISSING;
+  }
+
+  /**
+   * Get the value code of a scenario.
+   * 
+   * @param scenario Scenario number
+   * @param dim Variate position
+   * @return Value code
+   */
+  public int getCode(int scenario, int dim) {
+    return codes[scenario][dim];
+  }
+
+  /**
+   * A group of scenarios that share the same values.
+   * 
+   * @author Erich Schubert
+   */
+  public static class Group {
+    /** Value codes */
+    final int[] key;
+
+    /** Member scenarios */
+    int[] members = new int[4];
+
+    /** Number of members */
+    int size = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param key Value codes
+     */
+    Group(int[] key) {
+      this.key = key;
+    }
+
+    /**
+     * Add a member.
+     * 
+     * @param scenario Scenario number
+     */
+    void add(int scenario) {
+      if(size == members.length) {
+        members = Arrays.copyOf(members, size << 1);
+      }
+      members[size++] = scenario;
+    }
+
+    /**
+     * Get the value codes of this group.
+     * 
+     * @param i Position in the grouping variates
+     * @return Value code
+     */
+    public int getKey(int i) {
+      return key[i];
+    }
+
+    /**
+     * Get the number of scenarios in this group.
+     * 
+     * @return Number of scenarios
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Get a member of this group.
+     * 
+     * @param i Member number
+     * @return Scenario number
+     */
+    public int get(int i) {
+      return members[i];
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(key);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Group && Arrays.equals(key, ((Group) obj).key);
+    }
+  }
+}
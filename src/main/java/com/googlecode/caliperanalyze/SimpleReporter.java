@@ -2,25 +2,41 @@ package com.googlecode.caliperanalyze;
 
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
-import com.google.caliper.model.Scenario;
-import com.google.caliper.model.Trial;
-import com.google.common.collect.HashMultimap;
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Measurement;
+import com.google.common.base.Joiner;
 import com.google.common.collect.SetMultimap;
 import com.google.gson.JsonParseException;
+import com.googlecode.caliperanalyze.util.Bootstrap;
 import com.googlecode.caliperanalyze.util.CaliperConfigurationAdapter;
 import com.googlecode.caliperanalyze.util.FileUtil;
+import com.googlecode.caliperanalyze.util.QuantileDigest;
+import com.googlecode.caliperanalyze.util.RobustLeastSquaresFit;
+import com.googlecode.caliperanalyze.util.SplitMix64;
+import com.googlecode.caliperanalyze.util.TrialOffsetIndex;
 
 /**
  * TODO: Add logging
@@ -34,6 +50,7 @@ public class SimpleReporter {
   enum Mode {//
     AVERAGES, // Averages reporting
     TREND, // Trend analysis
+    MULTITREND, // Joint trend analysis of multiple variates
   };
 
   /**
@@ -41,6 +58,68 @@ public class SimpleReporter {
    */
   Mode mode = Mode.AVERAGES;
 
+  /**
+   * Number of threads for reading files and fitting trends, 1 runs
+   * sequentially.
+   */
+  int threads = 1;
+
+  /**
+   * Use a binary cache of parsed result files.
+   */
+  boolean cache = false;
+
+  /**
+   * Filter of trials, {@code null} to analyze all trials.
+   */
+  TrialFilter filter = null;
+
+  /**
+   * Caliper configuration file, {@code null} for the default.
+   */
+  String config = null;
+
+  /**
+   * Compression of the quantile sketches, 0 does not estimate quantiles.
+   */
+  double compression = 0;
+
+  /**
+   * Estimator of location and scale of the averages.
+   */
+  AggregateMeasurements.Estimator estimator = AggregateMeasurements.Estimator.MEAN;
+
+  /**
+   * Parameter values to extrapolate the trends to, {@code null} for none.
+   */
+  double[] predict = null;
+
+  /**
+   * Confidence level of the prediction intervals.
+   */
+  private static final double PREDICTION_LEVEL = .95;
+
+  /**
+   * Number of bootstrap resamples for confidence intervals, 0 for none.
+   */
+  int bootstrap = 0;
+
+  /**
+   * Random seed of the bootstrap, fixed for reproducible reports.
+   */
+  private static final long BOOTSTRAP_SEED = 0x5eedL;
+
+  /**
+   * Keep watching a result file for new trials.
+   */
+  boolean watch = false;
+
+  /**
+   * Maximum time to wait for file change notifications, in seconds. Some file
+   * systems do not deliver them, so the file is checked at least this often.
+   */
+  private static final int WATCH_TIMEOUT = 10;
+
   /**
    * Constructor.
    */
@@ -50,35 +129,39 @@ public class SimpleReporter {
 
   private void run(String[] args) {
     ArrayList<File> files = getFilenames(args);
-    ArrayList<Trial> trials = readFiles(files);
-
-    // Build a multimap of all benchmark parameters:
-    final SetMultimap<String, String> spec = HashMultimap.create();
-    for(Iterator<Trial> iter = trials.iterator(); iter.hasNext();) {
-      Trial t = iter.next();
-      // TODO: also use Host and VM parameters,
-      // in case someone is benchmarking VMs!
-      // Any of these could be null on incomplete trials:
-      try {
-        spec.get("BenchmarkMethod").add(t.scenario().benchmarkSpec().methodName());
-        spec.get("BenchmarkClass").add(t.scenario().benchmarkSpec().className());
-        for(Map.Entry<String, String> entry : t.scenario().benchmarkSpec().parameters().entrySet()) {
-          spec.get(entry.getKey()).add(entry.getValue());
-        }
-      }
-      catch(NullPointerException e) {
-        // We are indeed expecting this to happen sometimes.
-        iter.remove(); // Remove, so this doesn't happen again below.
-        continue;
+    // Aggregate while reading. Least squares trends only need the aggregates;
+    // merged records, robust fits and the bootstrap need the individual values.
+    final boolean keep = bootstrap > 0 || (mode == Mode.TREND && (TrendPredictor.mergeRecords || TrendPredictor.robust != null));
+    TrialStore results = new TrialStore(keep, compression, estimator);
+    if(watch) {
+      if(files.size() != 1) {
+        System.err.println("--watch needs a single result file.");
+        System.exit(1);
       }
+      watch(files.get(0), results);
+      return;
     }
+    readFiles(files, results);
+    report(results);
+  }
+
+  /**
+   * Report the results of all trials read so far.
+   * 
+   * @param results Trials
+   */
+  private void report(TrialStore results) {
+    // Build a multimap of all benchmark parameters:
+    final SetMultimap<String, String> spec = results.getParameterValues();
+    final Set<String> partial = results.getPartialParameters();
     // Find variates:
     Set<String> keys = spec.keySet();
     ArrayList<String> variates = new ArrayList<String>(keys.size());
     Set<String> nonnumeric = new HashSet<String>(keys.size());
     for(String key : keys) {
       Set<String> values = spec.get(key);
-      if(values.size() > 1) {
+      // Missing counts as a separate value.
+      if(values.size() + (partial.contains(key) ? 1 : 0) > 1) {
         variates.add(key);
         for(String v : values) {
           try {
@@ -92,40 +175,28 @@ public class SimpleReporter {
       }
     }
     // TODO: command line parameters for sorting.
-    sortHeurstically(spec, variates);
+    sortHeurstically(spec, partial, variates);
     if(mode == Mode.AVERAGES) {
-      recursivelySummarize(trials, variates, spec, new ArrayList<String>());
+      if(bootstrap > 0) {
+        bootstrapMeans(results);
+      }
+      summarize(results, new ScenarioIndex(results, variates, spec));
     }
     if(mode == Mode.TREND) {
-      // Perform estimations:
-      for(String v : variates) {
-        if(nonnumeric.contains(v)) {
-          continue;
-        }
-        // Skip trend estimation for small number of samples for now
-        // Until we have a better rule to estimate when it is
-        // statistically sound to estimate a trend.
-        if(spec.get(v).size() < 5) {
-          System.out.println("Not predicting a trend for " + v + ": too few different values.");
-          continue;
-        }
-        System.out.println("Predicting trend for " + v);
-        // Move target variate last:
-        ArrayList<String> modv = new ArrayList<>(variates);
-        modv.remove(v); // remove anywhere
-        modv.add(v); // add to end
-        predictTrend(trials, modv, spec, new ArrayList<String>());
-      }
+      predictTrends(results, new ScenarioIndex(results, variates, spec), nonnumeric);
+    }
+    if(mode == Mode.MULTITREND) {
+      predictMultivariateTrends(results, new ScenarioIndex(results, variates, spec), nonnumeric);
     }
   }
 
-  private void sortHeurstically(final SetMultimap<String, String> spec, ArrayList<String> variates) {
+  private void sortHeurstically(final SetMultimap<String, String> spec, final Set<String> partial, ArrayList<String> variates) {
     // TODO: heuristics for sorting. Number of entries?
     Collections.sort(variates, new Comparator<String>() {
       @Override
       public int compare(String o1, String o2) {
-        int num1 = spec.get(o1).size();
-        int num2 = spec.get(o2).size();
+        int num1 = spec.get(o1).size() + (partial.contains(o1) ? 1 : 0);
+        int num2 = spec.get(o2).size() + (partial.contains(o2) ? 1 : 0);
         if(num1 != num2) {
           return Integer.compare(num1, num2);
         }
@@ -141,34 +212,324 @@ public class SimpleReporter {
   }
 
   /**
-   * Read files into the array of trials.
+   * Read files, passing each trial to the handler.
    * 
    * @param files Files to read.
-   * @return Trials
+   * @param handler Handler to process the trials
    */
-  private ArrayList<Trial> readFiles(ArrayList<File> files) {
-    CaliperResultsReader reader = new CaliperResultsReader();
-    ArrayList<Trial> trials = new ArrayList<Trial>();
+  private void readFiles(ArrayList<File> files, TrialHandler handler) {
+    CaliperResultsReader reader = new CaliperResultsReader(filter);
+    // The cache must contain all trials, so these are filtered afterwards:
+    CaliperResultsReader unfiltered = cache && filter != null ? new CaliperResultsReader() : reader;
+    if(threads > 1) {
+      readFilesParallel(reader, unfiltered, files, handler);
+      return;
+    }
     for(File file : files) {
-      try {
-        reader.readTrialsFromJSON(file, trials);
+      if(cache) {
+        ResultsCache cached = ResultsCache.read(file);
+        if(cached != null) {
+          cached.replay(filtered(handler));
+          if(!cached.isComplete()) {
+            System.err.println("Note: truncated file: " + file);
+          }
+          continue;
+        }
       }
-      catch(JsonParseException e) {
-        if(e.getCause() instanceof EOFException || e.getMessage().contains("Unterminated string")) {
-          // Pass - probably an incomplete run.
-          System.err.println("Note: truncated file: " + file);
+      ResultsCache recorder = cache ? new ResultsCache(file) : null;
+      boolean complete = true;
+      try {
+        if(recorder != null) {
+          unfiltered.readTrialsFromJSON(file, tee(filtered(handler), recorder));
         }
         else {
-          e.printStackTrace();
-          System.exit(1);
+          reader.readTrialsFromJSON(file, handler);
         }
       }
-      catch(IOException e) {
-        e.printStackTrace();
-        System.exit(1);
+      catch(JsonParseException | IOException e) {
+        handleReadError(file, e);
+        complete = false;
+      }
+      if(recorder != null) {
+        recorder.write(complete);
+      }
+    }
+  }
+
+  /**
+   * Watch a result file of a run in progress, and report whenever new trials
+   * have been appended.
+   * 
+   * Only the appended bytes are scanned, and only the new trials are decoded
+   * and added to the (incrementally updated) aggregates. Caliper writes to a
+   * {@code .json.tmp} file, and renames it when the run is complete; the
+   * renamed file is then followed, and watching ends once the JSON array is
+   * closed.
+   * 
+   * @param file File to watch
+   * @param results Trial store to add the trials to
+   */
+  private void watch(File file, TrialStore results) {
+    CaliperResultsReader reader = new CaliperResultsReader(filter);
+    TrialOffsetIndex index = new TrialOffsetIndex();
+    File dir = file.getAbsoluteFile().getParentFile();
+    String path = file.getPath();
+    File renamed = path.endsWith(".tmp") ? new File(path.substring(0, path.length() - 4)) : null;
+    try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+      int done = 0;
+      while(true) {
+        if(!file.exists() && renamed != null && renamed.exists()) {
+          file = renamed;
+          renamed = null;
+        }
+        try {
+          index.update(file);
+          if(index.size() > done) {
+            reader.readTrialsFromJSON(file, index, done, index.size(), results);
+          }
+        }
+        catch(FileNotFoundException e) {
+          // Renamed after the check above; retry (the pending trials, too)
+          // with the renamed file.
+          if(renamed != null && renamed.exists()) {
+            continue;
+          }
+          throw e;
+        }
+        catch(JsonParseException e) {
+          handleReadError(file, e);
+        }
+        if(index.size() > done) {
+          done = index.size();
+          if(filter != null) {
+            System.out.println("Trials accepted: " + results.numTrials() + " of " + done + " from " + file);
+          }
+          else {
+            System.out.println("Trials read: " + done + " from " + file);
+          }
+          report(results);
+          System.out.println();
+        }
+        if(index.isComplete()) {
+          return;
+        }
+        WatchKey key = watcher.poll(WATCH_TIMEOUT, TimeUnit.SECONDS);
+        if(key != null) {
+          key.pollEvents(); // We rescan anyway.
+          key.reset();
+        }
+      }
+    }
+    catch(IOException | InterruptedException e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Filter the trials passed on to a handler, if a filter is set.
+   * 
+   * @param handler Handler
+   * @return Filtering handler, or the handler itself
+   */
+  private TrialHandler filtered(TrialHandler handler) {
+    return filter != null ? filter.wrap(handler) : handler;
+  }
+
+  /**
+   * Pass trials on to two handlers.
+   * 
+   * @param first First handler
+   * @param second Second handler
+   * @return Combined handler
+   */
+  private static TrialHandler tee(final TrialHandler first, final TrialHandler second) {
+    return new TrialHandler() {
+      @Override
+      public void handleTrial(BenchmarkSpec spec, List<Measurement> measurements) {
+        first.handleTrial(spec, measurements);
+        second.handleTrial(spec, measurements);
+      }
+    };
+  }
+
+  /**
+   * Decode files concurrently, passing the trials to the handler in the same
+   * order as the sequential reader would.
+   * 
+   * Each file is indexed first, and then decoded in chunks of trials, so that
+   * a single large file can be processed by multiple threads, too. At most two
+   * chunks per thread are decoded ahead of the chunk currently being
+   * processed, to bound memory usage.
+   * 
+   * @param reader Reader to use (thread safe)
+   * @param unfiltered Reader of all trials, for recording the cache
+   * @param files Files to read.
+   * @param handler Handler to process the trials
+   */
+  private void readFilesParallel(final CaliperResultsReader reader, final CaliperResultsReader unfiltered, ArrayList<File> files, TrialHandler handler) {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    ArrayDeque<Chunk> pending = new ArrayDeque<>();
+    try {
+      for(final File file : files) {
+        if(cache) {
+          final ResultsCache cached = ResultsCache.read(file);
+          if(cached != null) {
+            if(pending.size() >= threads << 1) {
+              pending.remove().replay(handler);
+            }
+            pending.add(new Chunk(file, pool.submit(new Callable<TrialBuffer>() {
+              @Override
+              public TrialBuffer call() {
+                TrialBuffer buffer = new TrialBuffer();
+                cached.replay(filtered(buffer));
+                return buffer;
+              }
+            }), !cached.isComplete(), null, true));
+            continue;
+          }
+        }
+        final TrialOffsetIndex index;
+        try {
+          index = TrialOffsetIndex.build(file);
+        }
+        catch(IOException e) {
+          handleReadError(file, e);
+          continue;
+        }
+        final ResultsCache recorder = cache ? new ResultsCache(file) : null;
+        // Always submit at least one (possibly empty) chunk per file.
+        int begin = 0;
+        do {
+          final int from = begin, end = Math.min(begin + CHUNK_SIZE, index.size());
+          if(pending.size() >= threads << 1) {
+            pending.remove().replay(handler);
+          }
+          Future<TrialBuffer> result = pool.submit(new Callable<TrialBuffer>() {
+            @Override
+            public TrialBuffer call() {
+              TrialBuffer buffer = new TrialBuffer();
+              try {
+                (recorder != null ? unfiltered : reader).readTrialsFromJSON(file, index, from, end, buffer);
+              }
+              catch(JsonParseException | IOException e) {
+                buffer.setError(e);
+              }
+              return buffer;
+            }
+          });
+          final boolean last = end == index.size();
+          // Incomplete trailing trials are not in the index:
+          pending.add(new Chunk(file, result, last && !index.isComplete(), recorder, last));
+          begin = end;
+        }
+        while(begin < index.size());
       }
+      while(!pending.isEmpty()) {
+        pending.remove().replay(handler);
+      }
+    }
+    catch(InterruptedException | ExecutionException e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+    finally {
+      pool.shutdownNow();
     }
-    return trials;
+  }
+
+  /**
+   * Maximum number of trials decoded in one task.
+   */
+  private static final int CHUNK_SIZE = 256;
+
+  /**
+   * A range of trials, decoded in the background.
+   * 
+   * @author Erich Schubert
+   */
+  private class Chunk {
+    /** File */
+    final File file;
+
+    /** Decoded trials */
+    final Future<TrialBuffer> result;
+
+    /** Last chunk of a truncated file */
+    final boolean truncated;
+
+    /** Cache to record the trials in, may be {@code null} */
+    final ResultsCache recorder;
+
+    /** Last chunk of the file */
+    final boolean last;
+
+    /**
+     * Constructor.
+     * 
+     * @param file File to read
+     * @param result Decoded trials
+     * @param truncated Last chunk of a truncated file
+     * @param recorder Cache to record the trials in, may be {@code null}
+     * @param last Last chunk of the file, write the cache afterwards.
+     */
+    Chunk(File file, Future<TrialBuffer> result, boolean truncated, ResultsCache recorder, boolean last) {
+      this.file = file;
+      this.result = result;
+      this.truncated = truncated;
+      this.recorder = recorder;
+      this.last = last;
+    }
+
+    /**
+     * Wait for the decoded trials, and pass them on to the handler.
+     * 
+     * @param handler Handler
+     * @throws InterruptedException When interrupted
+     * @throws ExecutionException On unexpected errors in the decoder
+     */
+    void replay(TrialHandler handler) throws InterruptedException, ExecutionException {
+      TrialBuffer buffer = result.get();
+      if(recorder != null) {
+        // Not filtered yet, as all trials are recorded in the cache:
+        buffer.replay(filtered(handler));
+        buffer.replay(recorder);
+      }
+      else {
+        buffer.replay(handler);
+      }
+      boolean complete = !truncated;
+      if(buffer.getError() != null) {
+        handleReadError(file, buffer.getError());
+        complete = false;
+      }
+      if(truncated) {
+        System.err.println("Note: truncated file: " + file);
+      }
+      if(recorder != null && last) {
+        recorder.write(complete);
+      }
+    }
+  }
+
+  /**
+   * Handle an error while reading a file: truncated files are accepted, as
+   * they are usually incomplete runs, anything else is fatal.
+   * 
+   * @param file File that was read
+   * @param e Error
+   */
+  private void handleReadError(File file, Exception e) {
+    if(e instanceof JsonParseException) {
+      if(e.getCause() instanceof EOFException || e.getMessage().contains("Unterminated string")) {
+        // Pass - probably an incomplete run.
+        System.err.println("Note: truncated file: " + file);
+        return;
+      }
+    }
+    e.printStackTrace();
+    System.exit(1);
   }
 
   /**
@@ -178,13 +539,89 @@ public class SimpleReporter {
    * @return Files
    */
   private ArrayList<File> getFilenames(String[] args) {
-    ArrayList<File> files;
-    // TODO: allow the -c flag for caliper configuration files.
-    if(args.length == 0) {
-      File resultdir = new CaliperConfigurationAdapter(null).getCaliperResultDir();
-      files = new ArrayList<>(1);
+    ArrayList<File> files = new ArrayList<>(args.length);
+    for(int i = 0; i < args.length; i++) {
+      // FIXME: use a proper command line parser, instead of this hack.
+      if("-t".equals(args[i])) {
+        mode = Mode.TREND;
+        continue;
+      }
+      if("--multi".equals(args[i])) {
+        mode = Mode.MULTITREND;
+        continue;
+      }
+      if("--select".equals(args[i]) && i + 1 < args.length) {
+        TrendPredictor.selection = TrendPredictor.Selection.valueOf(args[++i].toUpperCase());
+        continue;
+      }
+      if("--predict".equals(args[i]) && i + 1 < args.length) {
+        mode = mode == Mode.AVERAGES ? Mode.TREND : mode;
+        String[] values = args[++i].split(",");
+        predict = new double[values.length];
+        for(int j = 0; j < values.length; j++) {
+          predict[j] = Double.parseDouble(values[j]);
+        }
+        continue;
+      }
+      if("--lambda".equals(args[i]) && i + 1 < args.length) {
+        String value = args[++i];
+        TrendPredictor.selectLambda = "gcv".equalsIgnoreCase(value);
+        if(!TrendPredictor.selectLambda) {
+          TrendPredictor.lambda = Double.parseDouble(value);
+        }
+        continue;
+      }
+      if("--weighted".equals(args[i])) {
+        TrendPredictor.weighted = true;
+        continue;
+      }
+      if("--robust".equals(args[i]) && i + 1 < args.length) {
+        TrendPredictor.robust = RobustLeastSquaresFit.Loss.valueOf(args[++i].toUpperCase());
+        continue;
+      }
+      if("--bootstrap".equals(args[i]) && i + 1 < args.length) {
+        bootstrap = Math.max(0, Integer.parseInt(args[++i]));
+        continue;
+      }
+      if("--cache".equals(args[i])) {
+        cache = true;
+        continue;
+      }
+      if("-q".equals(args[i])) {
+        compression = compression > 0 ? compression : QuantileDigest.DEFAULT_COMPRESSION;
+        continue;
+      }
+      if("--estimator".equals(args[i]) && i + 1 < args.length) {
+        estimator = AggregateMeasurements.Estimator.valueOf(args[++i].toUpperCase());
+        continue;
+      }
+      if("--compression".equals(args[i]) && i + 1 < args.length) {
+        compression = Double.parseDouble(args[++i]);
+        continue;
+      }
+      if("--watch".equals(args[i])) {
+        watch = true;
+        continue;
+      }
+      if("--where".equals(args[i]) && i + 1 < args.length) {
+        filter = (filter != null ? filter : new TrialFilter()).add(args[++i]);
+        continue;
+      }
+      if("-c".equals(args[i]) && i + 1 < args.length) {
+        config = args[++i];
+        continue;
+      }
+      if("-j".equals(args[i]) && i + 1 < args.length) {
+        threads = Math.max(1, Integer.parseInt(args[++i]));
+        continue;
+      }
+      files.add(new File(args[i]));
+    }
+    if(files.isEmpty()) {
+      CaliperConfigurationAdapter conf = new CaliperConfigurationAdapter(config);
       try {
-        files.add(FileUtil.findLatestFile(resultdir));
+        File resultfile = conf.getCaliperResultFile();
+        files.add(resultfile != null ? resultfile : FileUtil.findLatestFile(conf.getCaliperResultDir()));
         System.out.println("Loading latest results file: " + files.get(0));
       }
       catch(IOException e) {
@@ -192,127 +629,447 @@ public class SimpleReporter {
         System.exit(1);
       }
     }
-    else {
-      files = new ArrayList<>(args.length);
-      for(int i = 0; i < args.length; i++) {
-        // FIXME: use a proper command line parser, instead of this hack.
-        if("-t".equals(args[i])) {
-          mode = Mode.TREND;
-          continue;
+    return files;
+  }
+
+  /**
+   * Summarize the results.
+   * 
+   * The scenarios are grouped by all but the last variate in one pass; the
+   * groups are printed in alphabetical order of their values, the scenarios
+   * within each group sorted by their mean.
+   * 
+   * @param store Trial store
+   * @param index Scenario index
+   */
+  private void summarize(final TrialStore store, final ScenarioIndex index) {
+    final int last = index.numVariates() - 1;
+    int[] dims = new int[last];
+    for(int i = 0; i < last; i++) {
+      dims[i] = i;
+    }
+    Integer[] order = new Integer[0];
+    for(ScenarioIndex.Group group : index.groupBy(dims)) {
+      if(order.length < group.size()) {
+        order = new Integer[group.size()];
+      }
+      for(int i = 0; i < group.size(); i++) {
+        order[i] = group.get(i);
+      }
+      Arrays.sort(order, 0, group.size(), new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          int c = Double.compare(store.getAggregate(o1).getLocation(), store.getAggregate(o2).getLocation());
+          return c != 0 ? c : Integer.compare(index.getCode(o1, last), index.getCode(o2, last));
+        }
+      });
+      for(int i = 0; i < group.size(); i++) {
+        AggregateMeasurements agg = store.getAggregate(order[i]);
+        if(agg.getWeight() > 0) {
+          for(int j = 0; j < last; j++) {
+            System.out.print(index.getValue(j, group.getKey(j)));
+            System.out.print(" ");
+          }
+          System.out.print(index.getValue(last, index.getCode(order[i], last)));
+          System.out.print(" ");
+          System.out.println(agg);
         }
-        files.add(new File(args[i]));
       }
     }
-    return files;
   }
 
   /**
-   * Recursively summarize the results.
+   * Predict trends for all numeric variates.
+   * 
+   * For each variate, the scenarios are grouped by all other variates, using
+   * the shared index. All trend predictors are then filled in a single pass
+   * over the scenarios.
    * 
-   * @param trials Trials to process
-   * @param variates Variate names
-   * @param spec Parameter map
-   * @param selected Current selection
-   */
-  private void recursivelySummarize(Collection<Trial> trials, List<String> variates, SetMultimap<String, String> spec, List<String> selected) {
-    final int depth = selected.size();
-    String curkey = variates.get(depth);
-    List<String> values = new ArrayList<String>(spec.get(curkey));
-    if(depth + 1 < variates.size()) {
-      Collections.sort(values); // Alphabetic.
-      for(String value : values) {
-        selected.add(value);
-        recursivelySummarize(trials, variates, spec, selected);
-        selected.remove(depth);
+   * @param store Trial store
+   * @param index Scenario index
+   * @param nonnumeric Non-numeric variates
+   */
+  private void predictTrends(TrialStore store, ScenarioIndex index, Set<String> nonnumeric) {
+    final int dim = index.numVariates(), numscenarios = index.size();
+    // Scenario to predictor assignment, for each variate:
+    TrendPredictor[][] assignment = new TrendPredictor[dim][];
+    List<List<ScenarioIndex.Group>> groups = new ArrayList<>(dim);
+    List<TrendPredictor[]> predictors = new ArrayList<>(dim);
+    // Numerical parameter values, for each variate:
+    double[][] targets = new double[dim][];
+    // Each predictor gets its own generator, in a fixed order:
+    SplitMix64 random = new SplitMix64(BOOTSTRAP_SEED);
+    for(int v = 0; v < dim; v++) {
+      // Skip trend estimation for small number of samples for now
+      // Until we have a better rule to estimate when it is
+      // statistically sound to estimate a trend.
+      if(nonnumeric.contains(index.getVariate(v)) || index.numValues(v) < 5) {
+        groups.add(null);
+        predictors.add(null);
+        continue;
       }
-      return;
+      targets[v] = new double[index.numValues(v)];
+      for(int i = 0; i < targets[v].length; i++) {
+        targets[v][i] = index.isMissing(v, i) ? Double.NaN : Double.parseDouble(index.getValue(v, i));
+      }
+      // Group by all other variates:
+      int[] dims = new int[dim - 1];
+      for(int i = 0, j = 0; i < dim; i++) {
+        if(i != v) {
+          dims[j++] = i;
+        }
+      }
+      List<ScenarioIndex.Group> vgroups = index.groupBy(dims);
+      TrendPredictor[] vpredictors = new TrendPredictor[vgroups.size()];
+      assignment[v] = new TrendPredictor[numscenarios];
+      for(int g = 0; g < vpredictors.length; g++) {
+        vpredictors[g] = new TrendPredictor();
+        if(bootstrap > 0) {
+          vpredictors[g].enableBootstrap(bootstrap, random.split());
+        }
+        ScenarioIndex.Group group = vgroups.get(g);
+        for(int i = 0; i < group.size(); i++) {
+          assignment[v][group.get(i)] = vpredictors[g];
+        }
+      }
+      groups.add(vgroups);
+      predictors.add(vpredictors);
     }
-    // Initialize:
-    final Map<String, AggregateMeasurements> aggs = new HashMap<String, AggregateMeasurements>();
-    for(String val : values) {
-      aggs.put(val, new AggregateMeasurements());
+    // Single pass over all scenarios:
+    for(int s = 0; s < numscenarios; s++) {
+      for(int v = 0; v < dim; v++) {
+        if(assignment[v] != null) {
+          final double target = targets[v][index.getCode(s, v)];
+          if(target == target) { // Not NaN, i.e. not missing
+            assignment[v][s].add(store, s, target);
+          }
+        }
+      }
     }
-    next: for(Trial t : trials) {
-      for(int i = 0; i < depth; i++) {
-        if(!selected.get(i).equals(getScenarioParameter(t.scenario(), variates.get(i)))) {
-          continue next;
+    // Fit all trends (possibly in parallel), then output in order:
+    List<TrendPredictor> all = new ArrayList<>();
+    for(TrendPredictor[] vpredictors : predictors) {
+      if(vpredictors != null) {
+        for(TrendPredictor p : vpredictors) {
+          all.add(p.getNumMeasurements() > 0 ? p : null);
         }
       }
-      aggs.get(getScenarioParameter(t.scenario(), curkey)).add(t.measurements());
     }
-    Collections.sort(values, new Comparator<String>() {
-      @Override
-      public int compare(String o1, String o2) {
-        return Double.compare(aggs.get(o1).getMean(), aggs.get(o2).getMean());
+    fitTrends(all.toArray(new TrendPredictor[all.size()]));
+    // Output:
+    for(int v = 0; v < dim; v++) {
+      final String name = index.getVariate(v);
+      if(nonnumeric.contains(name)) {
+        continue;
       }
-    });
-    for(String val : values) {
-      AggregateMeasurements agg = aggs.get(val);
-      if(agg.getWeight() > 0) {
-        for(String k : selected) {
-          System.out.print(k);
-          System.out.print(" ");
+      if(assignment[v] == null) {
+        System.out.println("Not predicting a trend for " + name + ": too few different values.");
+        continue;
+      }
+      System.out.println("Predicting trend for " + name);
+      List<ScenarioIndex.Group> vgroups = groups.get(v);
+      TrendPredictor[] vpredictors = predictors.get(v);
+      for(int g = 0; g < vpredictors.length; g++) {
+        if(vpredictors[g].getNumMeasurements() > 0) {
+          ScenarioIndex.Group group = vgroups.get(g);
+          for(int i = 0, j = 0; i < dim; i++) {
+            if(i != v) {
+              System.out.print(index.getValue(i, group.getKey(j++)));
+              System.out.print(" ");
+            }
+          }
+          System.out.println(vpredictors[g]);
+          if(predict != null) {
+            printPredictions(name, vpredictors[g].getTrend());
+          }
         }
-        System.out.print(val);
-        System.out.print(" ");
-        System.out.println(agg);
       }
     }
   }
 
   /**
-   * Recursively summarize the results.
+   * Print the extrapolation of a trend to the requested parameter values.
    * 
-   * @param trials Trials to process
-   * @param variates Variate names
-   * @param spec Parameter map
-   * @param selected Current selection
-   */
-  private void predictTrend(Collection<Trial> trials, List<String> variates, SetMultimap<String, String> spec, List<String> selected) {
-    final int depth = selected.size();
-    String curkey = variates.get(depth);
-    List<String> values = new ArrayList<String>(spec.get(curkey));
-    if(depth + 1 < variates.size()) {
-      Collections.sort(values); // Alphabetic.
-      for(String value : values) {
-        selected.add(value);
-        predictTrend(trials, variates, spec, selected);
-        selected.remove(depth);
+   * @param name Variate name
+   * @param trend Fitted trend
+   */
+  private void printPredictions(String name, Trend trend) {
+    double[] mean = new double[predict.length];
+    double[] lower = new double[predict.length], upper = new double[predict.length];
+    trend.predict(predict, PREDICTION_LEVEL, mean, lower, upper);
+    for(int j = 0; j < predict.length; j++) {
+      System.out.println(String.format("  %s=%s: %.4g [%.4g .. %.4g]", name, predict[j], mean[j], lower[j], upper[j]));
+    }
+  }
+
+  /**
+   * Maximum number of variates in a joint trend; the number of basis terms
+   * grows quadratically.
+   */
+  private static final int MAX_JOINT_VARIATES = 3;
+
+  /**
+   * Predict joint trends in the numeric variates.
+   * 
+   * The scenarios are grouped by all other variates (e.g. the benchmark
+   * method), and a single model is fitted for each group. If there are more
+   * than {@link #MAX_JOINT_VARIATES} numeric variates, those with the most
+   * values are used.
+   * 
+   * @param store Trial store
+   * @param index Scenario index
+   * @param nonnumeric Non-numeric variates
+   */
+  private void predictMultivariateTrends(TrialStore store, ScenarioIndex index, Set<String> nonnumeric) {
+    warnUnsupportedMultivariate();
+    final int dim = index.numVariates();
+    // Variates are sorted by their number of values, so take the last ones:
+    int[] numeric = new int[Math.min(dim, MAX_JOINT_VARIATES)];
+    int k = 0;
+    for(int v = dim - 1; v >= 0 && k < numeric.length; v--) {
+      // Same rule as for trends in single variates.
+      if(!nonnumeric.contains(index.getVariate(v)) && index.numValues(v) >= 5) {
+        numeric[k++] = v;
       }
+    }
+    if(k == 0) {
+      System.out.println("Not predicting a joint trend: too few numeric variates.");
       return;
     }
-    // Initialize:
-    TrendPredictor trend = new TrendPredictor();
-    next: for(Trial t : trials) {
-      for(int i = 0; i < depth; i++) {
-        if(!selected.get(i).equals(getScenarioParameter(t.scenario(), variates.get(i)))) {
-          continue next;
+    numeric = Arrays.copyOf(numeric, k);
+    Arrays.sort(numeric);
+    String[] names = new String[k];
+    double[][] targets = new double[k][];
+    for(int i = 0; i < k; i++) {
+      final int v = numeric[i];
+      names[i] = index.getVariate(v);
+      targets[i] = new double[index.numValues(v)];
+      for(int j = 0; j < targets[i].length; j++) {
+        targets[i][j] = index.isMissing(v, j) ? Double.NaN : Double.parseDouble(index.getValue(v, j));
+      }
+    }
+    // Group by all other variates:
+    int[] dims = new int[dim - k];
+    for(int v = 0, i = 0, j = 0; v < dim; v++) {
+      if(i < k && numeric[i] == v) {
+        ++i;
+      }
+      else {
+        dims[j++] = v;
+      }
+    }
+    List<ScenarioIndex.Group> groups = index.groupBy(dims);
+    MultivariateTrendPredictor[] predictors = new MultivariateTrendPredictor[groups.size()];
+    double[] point = new double[k];
+    for(int g = 0; g < predictors.length; g++) {
+      predictors[g] = new MultivariateTrendPredictor(names);
+      ScenarioIndex.Group group = groups.get(g);
+      scenarios: for(int i = 0; i < group.size(); i++) {
+        final int s = group.get(i);
+        for(int j = 0; j < k; j++) {
+          point[j] = targets[j][index.getCode(s, numeric[j])];
+          if(point[j] != point[j]) { // Missing
+            continue scenarios;
+          }
         }
+        predictors[g].add(store, s, point);
+      }
+      if(predictors[g].getNumMeasurements() == 0) {
+        predictors[g] = null;
       }
-      final String val = getScenarioParameter(t.scenario(), curkey);
-      trend.add(t.measurements(), Double.valueOf(val));
     }
-    if(trend.getNumMeasurements() > 0) {
-      for(String k : selected) {
-        System.out.print(k);
-        System.out.print(" ");
+    fitTrends(predictors);
+    // Output:
+    System.out.println("Predicting joint trend for " + Arrays.toString(names));
+    for(int g = 0; g < predictors.length; g++) {
+      if(predictors[g] != null) {
+        ScenarioIndex.Group group = groups.get(g);
+        for(int j = 0; j < dims.length; j++) {
+          System.out.print(index.getValue(dims[j], group.getKey(j)));
+          System.out.print(" ");
+        }
+        System.out.println(predictors[g]);
       }
-      System.out.println(trend);
     }
   }
 
-  private String getScenarioParameter(Scenario scenario, String key) {
-    String val = scenario.benchmarkSpec().parameters().get(key);
-    if(val != null) {
-      return val;
+  /**
+   * Print a note for the options that joint trends do not support, as they
+   * would otherwise be silently ignored.
+   */
+  private void warnUnsupportedMultivariate() {
+    List<String> ignored = new ArrayList<>();
+    if(TrendPredictor.robust != null) {
+      ignored.add("--robust");
+    }
+    if(TrendPredictor.useNNLS) {
+      ignored.add("non-negative least squares");
+    }
+    if(bootstrap > 0) {
+      ignored.add("--bootstrap");
+    }
+    if(predict != null) {
+      ignored.add("--predict");
+    }
+    if(!ignored.isEmpty()) {
+      System.err.println("Note: not supported for joint trends, ignored: " + Joiner.on(", ").join(ignored));
+    }
+  }
+
+  /**
+   * Fit the trends of all predictors, using a fork/join pool when multiple
+   * threads are enabled.
+   * 
+   * @param predictors Predictors, {@code null} entries are skipped
+   */
+  private void fitTrends(Fittable<?>[] predictors) {
+    invoke(new FitTask(predictors, 0, predictors.length));
+  }
+
+  /**
+   * Run a fork/join task with the configured number of threads.
+   * 
+   * @param task Task
+   */
+  private void invoke(RecursiveAction task) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(task);
     }
-    if("BenchmarkMethod".equals(key)) {
-      return scenario.benchmarkSpec().methodName();
+    finally {
+      pool.shutdown();
     }
-    if("BenchmarkCkass".equals(key)) {
-      return scenario.benchmarkSpec().className();
+  }
+
+  /**
+   * Compute bootstrap confidence intervals of the means of all scenarios, in
+   * parallel when multiple threads are enabled.
+   * 
+   * @param store Trial store, with the individual measurements
+   */
+  private void bootstrapMeans(TrialStore store) {
+    final int n = store.numScenarios();
+    // Each scenario gets its own generator, in a fixed order:
+    SplitMix64 random = new SplitMix64(BOOTSTRAP_SEED);
+    SplitMix64[] randoms = new SplitMix64[n];
+    for(int s = 0; s < n; s++) {
+      randoms[s] = random.split();
+    }
+    invoke(new BootstrapTask(store, randoms, bootstrap, 0, n));
+  }
+
+  /**
+   * Fork/join task to bootstrap the means of a range of scenarios.
+   * 
+   * @author Erich Schubert
+   */
+  private static class BootstrapTask extends RecursiveAction {
+    /** Serialization version */
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of scenarios to process without splitting */
+    private static final int THRESHOLD = 4;
+
+    /** Trial store */
+    final TrialStore store;
+
+    /** Random generators, for each scenario */
+    final SplitMix64[] randoms;
+
+    /** Number of resamples */
+    final int resamples;
+
+    /** Range to process */
+    final int begin, end;
+
+    /**
+     * Constructor.
+     * 
+     * @param store Trial store
+     * @param randoms Random generators, for each scenario
+     * @param resamples Number of resamples
+     * @param begin Begin of range (inclusive)
+     * @param end End of range (exclusive)
+     */
+    BootstrapTask(TrialStore store, SplitMix64[] randoms, int resamples, int begin, int end) {
+      this.store = store;
+      this.randoms = randoms;
+      this.resamples = resamples;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if(end - begin <= THRESHOLD) {
+        Bootstrap bootstrap = new Bootstrap(resamples, Bootstrap.DEFAULT_LEVEL);
+        double[] values = new double[0], weights = new double[0], interval = new double[2];
+        for(int s = begin; s < end; s++) {
+          int n = 0;
+          for(int m = store.firstMeasurement(s); m >= 0; m = store.nextMeasurement(m), n++) {
+            if(n == values.length) {
+              values = Arrays.copyOf(values, (n << 1) + 16);
+              weights = Arrays.copyOf(weights, (n << 1) + 16);
+            }
+            values[n] = store.getValue(m);
+            weights[n] = store.getWeight(m);
+          }
+          if(n > 0) {
+            bootstrap.meanInterval(values, weights, n, randoms[s], interval);
+            store.getAggregate(s).setConfidenceInterval(interval[0], interval[1]);
+          }
+        }
+        return;
+      }
+      final int mid = (begin + end) >>> 1;
+      invokeAll(new BootstrapTask(store, randoms, resamples, begin, mid), new BootstrapTask(store, randoms, resamples, mid, end));
+    }
+  }
+
+  /**
+   * Fork/join task to fit a range of trend predictors, which are independent.
+   * 
+   * @author Erich Schubert
+   */
+  private static class FitTask extends RecursiveAction {
+    /** Serialization version */
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of predictors to fit without splitting */
+    private static final int THRESHOLD = 8;
+
+    /** Predictors */
+    final Fittable<?>[] predictors;
+
+    /** Range to process */
+    final int begin, end;
+
+    /**
+     * Constructor.
+     * 
+     * @param predictors Predictors
+     * @param begin Begin of range (inclusive)
+     * @param end End of range (exclusive)
+     */
+    FitTask(Fittable<?>[] predictors, int begin, int end) {
+      this.predictors = predictors;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if(end - begin <= THRESHOLD) {
+        for(int i = begin; i < end; i++) {
+          if(predictors[i] != null) {
+            predictors[i].getTrend();
+          }
+        }
+        return;
+      }
+      final int mid = (begin + end) >>> 1;
+      invokeAll(new FitTask(predictors, begin, mid), new FitTask(predictors, mid, end));
     }
-    return null;
   }
 
   public static void main(String[] args) {
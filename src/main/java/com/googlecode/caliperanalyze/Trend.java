@@ -0,0 +1,220 @@
+package com.googlecode.caliperanalyze;
+
+import java.util.List;
+
+import com.googlecode.caliperanalyze.TrendPredictor.Function;
+import com.googlecode.caliperanalyze.util.LeastSquaresFit;
+import com.googlecode.caliperanalyze.util.NormalEquations;
+import com.googlecode.caliperanalyze.util.StudentT;
+
+/**
+ * A fitted trend: a linear combination of basis functions of one parameter,
+ * which can be evaluated (extrapolated) at arbitrary parameter values.
+ * 
+ * Prediction intervals are for a single new measurement, and use the residual
+ * variance s^2 of the fit and the leverage of the new point x:
+ * 
+ * y(x) +- t * s * sqrt(1 + x' * (X' * X + lambda * I)^-1 * x)
+ * 
+ * where t is the quantile of Student's t distribution with n - p degrees of
+ * freedom. The regularization is small, so this is a close approximation to
+ * the usual least squares interval; for NNLS fits the interval ignores the
+ * constraints.
+ * 
+ * @author Erich Schubert
+ */
+public class Trend {
+  /** Basis functions with non-zero coefficients */
+  final Function[] functions;
+
+  /** Coefficients */
+  final double[] coef;
+
+  /** Factorization of the normal equations, for the leverage */
+  final LeastSquaresFit factor;
+
+  /** Residual variance */
+  final double variance;
+
+  /** Regularization parameter lambda */
+  final double lambda;
+
+  /** Degrees of freedom of the residuals */
+  final int dof;
+
+  /** Flag, if the fit converged */
+  final boolean converged;
+
+  /** Confidence intervals of the coefficients, may be {@code null} */
+  double[] lower, upper;
+
+  /**
+   * Constructor.
+   * 
+   * @param equations Normal equations of the observations
+   * @param candidates Basis functions
+   * @param scores Coefficients of the basis functions, zero if not used.
+   * @param lambda Regularization parameter lambda.
+   * @param relative Regularization relative to the squared column norms
+   * @param converged Flag, if the fit converged
+   */
+  Trend(NormalEquations equations, List<Function> candidates, double[] scores, double lambda, boolean relative, boolean converged) {
+    super();
+    int k = 0;
+    for (int i = 0; i < candidates.size(); i++) {
+      if (scores[i] > 0 || scores[i] < 0) {
+        ++k;
+      }
+    }
+    this.functions = new Function[k];
+    this.coef = new double[k];
+    int[] cols = new int[k];
+    for (int i = 0, j = 0; i < candidates.size(); i++) {
+      if (scores[i] > 0 || scores[i] < 0) {
+        functions[j] = candidates.get(i);
+        cols[j] = functions[j].ordinal();
+        coef[j++] = scores[i];
+      }
+    }
+    this.factor = new LeastSquaresFit(k, relative);
+    factor.factor(equations, cols, lambda);
+    this.lambda = lambda;
+    this.converged = converged;
+    this.dof = equations.getCount() - k;
+    // Weighted fits: variance of a measurement with the average weight.
+    final double avgweight = equations.getWeight() / equations.getCount();
+    this.variance = dof > 0 ? equations.residual(cols, coef) / (dof * avgweight) : Double.NaN;
+  }
+
+  /**
+   * Predict the value at a single target.
+   * 
+   * @param target Parameter value
+   * @return Predicted value
+   */
+  public double predict(double target) {
+    double sum = 0;
+    for (int i = 0; i < functions.length; i++) {
+      sum += coef[i] * functions[i].map(target);
+    }
+    return sum;
+  }
+
+  /**
+   * Predict the values at many targets, with prediction intervals.
+   * 
+   * @param targets Parameter values
+   * @param level Confidence level of the intervals, e.g. 0.95
+   * @param mean Output array for the predicted values
+   * @param lower Output array for the lower interval bounds, may be
+   *        {@code null}
+   * @param upper Output array for the upper interval bounds, may be
+   *        {@code null}
+   */
+  public void predict(double[] targets, double level, double[] mean, double[] lower, double[] upper) {
+    final int k = functions.length;
+    final double t = StudentT.quantile(.5 + level * .5, dof);
+    final boolean intervals = lower != null || upper != null;
+    double[] row = new double[k];
+    for (int j = 0; j < targets.length; j++) {
+      double sum = 0;
+      for (int i = 0; i < k; i++) {
+        row[i] = functions[i].map(targets[j]);
+        sum += coef[i] * row[i];
+      }
+      mean[j] = sum;
+      if (intervals) {
+        final double halfwidth = t * Math.sqrt(variance * (1 + factor.inverseQuadraticForm(row)));
+        if (lower != null) {
+          lower[j] = sum - halfwidth;
+        }
+        if (upper != null) {
+          upper[j] = sum + halfwidth;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the residual variance of the fit.
+   * 
+   * @return Variance, NaN if there are too few observations.
+   */
+  public double getResidualVariance() {
+    return variance;
+  }
+
+  /**
+   * Set the confidence intervals of the coefficients.
+   * 
+   * @param lower Lower bounds
+   * @param upper Upper bounds
+   */
+  void setConfidenceIntervals(double[] lower, double[] upper) {
+    this.lower = lower;
+    this.upper = upper;
+  }
+
+  /**
+   * Get the lower confidence bounds of the coefficients.
+   * 
+   * @return Lower bounds, {@code null} if not computed.
+   */
+  public double[] getLowerBounds() {
+    return lower;
+  }
+
+  /**
+   * Get the upper confidence bounds of the coefficients.
+   * 
+   * @return Upper bounds, {@code null} if not computed.
+   */
+  public double[] getUpperBounds() {
+    return upper;
+  }
+
+  /**
+   * Get the regularization parameter lambda of the fit.
+   * 
+   * @return Lambda
+   */
+  public double getLambda() {
+    return lambda;
+  }
+
+  /**
+   * Get the degrees of freedom of the residuals.
+   * 
+   * @return Number of observations minus the number of functions
+   */
+  public int getDegreesOfFreedom() {
+    return dof;
+  }
+
+  /**
+   * Check if the fit converged.
+   * 
+   * @return {@code false} if the iteration limit was reached.
+   */
+  public boolean isConverged() {
+    return converged;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    if (!converged) {
+      buf.append("(not converged) ");
+    }
+    for (int i = 0; i < functions.length; i++) {
+      if (i > 0) {
+        buf.append(' ');
+      }
+      buf.append(functions[i]).append(": ").append(coef[i]);
+      if (lower != null) {
+        buf.append(String.format(" [%.4g .. %.4g]", lower[i], upper[i]));
+      }
+    }
+    return buf.toString();
+  }
+}
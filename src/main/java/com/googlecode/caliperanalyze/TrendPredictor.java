@@ -2,24 +2,54 @@ package com.googlecode.caliperanalyze;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-
-import org.ejml.data.DenseMatrix64F;
 
 import com.google.caliper.model.Measurement;
+import com.googlecode.caliperanalyze.util.BestSubsetSelection;
+import com.googlecode.caliperanalyze.util.Bootstrap;
+import com.googlecode.caliperanalyze.util.DoubleIntHashMap;
 import com.googlecode.caliperanalyze.util.LeastSquaresFit;
 import com.googlecode.caliperanalyze.util.NonNegativeLeastSquaresFit;
+import com.googlecode.caliperanalyze.util.NormalEquations;
+import com.googlecode.caliperanalyze.util.RidgePath;
+import com.googlecode.caliperanalyze.util.RobustLeastSquaresFit;
+import com.googlecode.caliperanalyze.util.SplitMix64;
 
-public class TrendPredictor {
+public class TrendPredictor implements Fittable<Trend> {
   /**
    * Initial size for allocations.
    */
   private static final int INITIAL_SIZE = 21;
 
-  /** Data storage. */
-  double[] values = new double[INITIAL_SIZE], //
-      weights = new double[INITIAL_SIZE], //
-      targets = new double[INITIAL_SIZE];
+  /** Basis functions. */
+  private static final Function[] FUNCTIONS = Function.values();
+
+  /** Number of basis functions. */
+  private static final int NUM_FUNCTIONS = FUNCTIONS.length;
+
+  /**
+   * Functions of the greedy and non-negative fits, and of the robust fit which
+   * finds the outliers. As there usually are few degrees of freedom, fitting
+   * fewer functions works better there.
+   */
+  private static final Function[] BASIC_FUNCTIONS = { Function.CONST, Function.LOG2N, Function.LINEAR, Function.NLOG2N, Function.QUADRATIC };
+
+  /** Data storage, only used when merging records or fitting robustly. */
+  double[] values, weights, targets;
+
+  /** Index of the targets, when merging records. */
+  DoubleIntHashMap index;
+
+  /**
+   * Sufficient statistics for all basis functions, when not merging records
+   * or fitting robustly.
+   */
+  NormalEquations equations;
+
+  /** Basis functions evaluated at the last target. */
+  double[] row = new double[NUM_FUNCTIONS];
+
+  /** Target {@link #row} was computed for. */
+  double rowTarget = Double.NaN;
 
   /** Number of observations. */
   int numvalues = 0;
@@ -27,12 +57,90 @@ public class TrendPredictor {
   /** Metadata */
   String unit = null, description = null;
 
+  /** Fitted trend, until new observations are added. */
+  Trend trend = null;
+
+  /** Number of bootstrap resamples, 0 for no confidence intervals. */
+  int resamples = 0;
+
+  /** Random generator for the bootstrap. */
+  SplitMix64 random = null;
+
   /** Merge records of the same value */
   static boolean mergeRecords = false;
 
   /** Use NNLS or a simpler approach **/
   static boolean useNNLS = false;
 
+  /**
+   * Model selection strategies.
+   */
+  enum Selection {//
+    GREEDY, // Backward elimination of small coefficients
+    AIC, // Best subset by Akaike's information criterion
+    BIC, // Best subset by the Bayesian information criterion
+  };
+
+  /**
+   * Model selection strategy, if not using NNLS. Greedy by default, as the
+   * information criteria score the absolute residuals, which the largest
+   * sizes and outliers dominate on noisy measurements.
+   */
+  static Selection selection = Selection.GREEDY;
+
+  /** Regularization parameter lambda of the fits */
+  static double lambda = .1;
+
+  /**
+   * Choose lambda by generalized cross-validation instead; lambda is then
+   * relative to the squared norms of the columns.
+   */
+  static boolean selectLambda = false;
+
+  /** Weight the measurements by their number of repetitions */
+  static boolean weighted = false;
+
+  /** Loss function of a robust fit, {@code null} for least squares */
+  static RobustLeastSquaresFit.Loss robust = null;
+
+  /**
+   * Constructor.
+   */
+  public TrendPredictor() {
+    super();
+    if (mergeRecords || robust != null) {
+      values = new double[INITIAL_SIZE];
+      weights = new double[INITIAL_SIZE];
+      targets = new double[INITIAL_SIZE];
+      index = mergeRecords ? new DoubleIntHashMap() : null;
+    } else {
+      equations = new NormalEquations(NUM_FUNCTIONS);
+    }
+  }
+
+  /**
+   * Enable bootstrap confidence intervals of the coefficients. The individual
+   * measurements are then kept.
+   * 
+   * @param resamples Number of resamples
+   * @param random Random generator, not shared with other threads
+   * @return {@code this}
+   */
+  public TrendPredictor enableBootstrap(int resamples, SplitMix64 random) {
+    if (numvalues > 0) {
+      throw new IllegalStateException("Bootstrap must be enabled before adding measurements.");
+    }
+    this.resamples = resamples;
+    this.random = random;
+    if (equations != null) {
+      equations = null;
+      values = new double[INITIAL_SIZE];
+      weights = new double[INITIAL_SIZE];
+      targets = new double[INITIAL_SIZE];
+    }
+    return this;
+  }
+
   /**
    * Add a series of measurements.
    * 
@@ -41,8 +149,51 @@ public class TrendPredictor {
    * @return {@code this}
    */
   public TrendPredictor add(Iterable<Measurement> measurements, double target) {
+    String lastUnit = null, lastDescription = null;
     for (Measurement m : measurements) {
-      add(m, target);
+      final String unit = m.value().unit(), description = m.description();
+      // Only check the metadata when it changes within the batch.
+      if (unit != lastUnit || description != lastDescription) {
+        checkMetadata(unit, description);
+        lastUnit = unit;
+        lastDescription = description;
+      }
+      final double weight = m.weight();
+      add(m.value().magnitude() / weight, weight, target);
+    }
+    return this;
+  }
+
+  /**
+   * Add the measurements of a scenario.
+   * 
+   * All measurements of a scenario share the same row, so the least squares
+   * fit only needs the aggregate of the scenario. Merging records, robust fits
+   * and the bootstrap need the individual measurements kept by the store.
+   * 
+   * @param store Trial store
+   * @param scenario Scenario number
+   * @param target Value this was measured at.
+   * @return {@code this}
+   */
+  public TrendPredictor add(TrialStore store, int scenario, double target) {
+    if (equations != null) {
+      final AggregateMeasurements agg = store.getAggregate(scenario);
+      if (agg.getCount() > 0) {
+        checkMetadata(store.getUnit(scenario), store.getDescription(scenario));
+        trend = null;
+        setRow(target);
+        numvalues += addAggregate(equations, row, agg);
+      }
+      return this;
+    }
+    int m = store.firstMeasurement(scenario);
+    if (m < 0) {
+      return this;
+    }
+    checkMetadata(store.getUnit(scenario), store.getDescription(scenario));
+    for (; m >= 0; m = store.nextMeasurement(m)) {
+      add(store.getValue(m), store.getWeight(m), target);
     }
     return this;
   }
@@ -55,47 +206,125 @@ public class TrendPredictor {
    * @return {@code this}
    */
   public TrendPredictor add(Measurement measurement, double target) {
+    checkMetadata(measurement.value().unit(), measurement.description());
+    final double weight = measurement.weight();
+    add(measurement.value().magnitude() / weight, weight, target);
+    return this;
+  }
+
+  /**
+   * Sanity check the unit and description of new measurements.
+   * 
+   * @param unit Unit
+   * @param description Description
+   */
+  private void checkMetadata(String unit, String description) {
     // Sanity check for units
-    if (unit == null) {
-      unit = measurement.value().unit();
-    } else if (!unit.equals(measurement.value().unit())) {
+    if (this.unit == null) {
+      this.unit = unit;
+    } else if (!this.unit.equals(unit)) {
       throw new RuntimeException("Inconsistent units are not supported.");
     }
     // Sanity check for descriptions
-    if (description == null) {
-      description = measurement.description();
-    } else if (!description.equals(measurement.description())) {
+    if (this.description == null) {
+      this.description = description;
+    } else if (!this.description.equals(description)) {
       throw new RuntimeException("Multiple types of measuresments are not supported.");
     }
+  }
+
+  /**
+   * Evaluate the basis functions for a target, unless already done.
+   * 
+   * @param target Value measured at
+   */
+  private void setRow(double target) {
+    if (target != rowTarget) {
+      for (Function f : FUNCTIONS) {
+        row[f.ordinal()] = f.map(target);
+      }
+      rowTarget = target;
+    }
+  }
+
+  /**
+   * Add the measurements of an aggregate as a single group, weighted by
+   * repetitions if {@link #weighted} is set.
+   * 
+   * @param equations Normal equations
+   * @param row Row shared by all measurements
+   * @param agg Aggregate
+   * @return Number of measurements added
+   */
+  static int addAggregate(NormalEquations equations, double[] row, AggregateMeasurements agg) {
+    final int n = (int) agg.getCount();
+    if (weighted) {
+      equations.addGroup(row, agg.getMean(), agg.getSquaredDeviations(), agg.getWeight(), n);
+    } else {
+      equations.addGroup(row, agg.getUnweightedMean(), agg.getUnweightedSquaredDeviations(), n, n);
+    }
+    return n;
+  }
+
+  /**
+   * Add a single (normalized) value.
+   * 
+   * @param value Value, i.e. magnitude divided by weight
+   * @param weight Weight
+   * @param target Value this was measured at.
+   */
+  private void add(double value, double weight, double target) {
+    trend = null;
+    if (equations != null) {
+      setRow(target);
+      equations.add(row, value, weighted ? weight : 1.);
+      ++numvalues;
+      return;
+    }
     if (numvalues == values.length) {
       int newsize = (values.length << 1) + 1;
       values = Arrays.copyOf(values, newsize);
       weights = Arrays.copyOf(weights, newsize);
       targets = Arrays.copyOf(targets, newsize);
     }
-    final double weight = measurement.weight();
-    final double value = measurement.value().magnitude() / weight;
-    if (mergeRecords) {
-      for (int i = 0; i <= numvalues; i++) {
-        if (i < numvalues) {
-          if (targets[i] == target) {
-            weights[i] += weight;
-            values[i] += (value - values[i]) * weight / weights[i];
-            break;
-          }
-        } else {
-          values[numvalues] = value;
-          weights[numvalues] = weight;
-          targets[numvalues] = target;
-          ++numvalues;
-          break;
-        }
+    if (index != null) {
+      // Merge records of the same target:
+      final int i = index.get(target);
+      if (i >= 0) {
+        weights[i] += weight;
+        values[i] += (value - values[i]) * weight / weights[i];
+        return;
+      }
+      index.put(target, numvalues);
+    }
+    values[numvalues] = value;
+    weights[numvalues] = weight;
+    targets[numvalues] = target;
+    ++numvalues;
+  }
+
+  /**
+   * Merge the observations of another predictor (e.g. of a different thread
+   * or file) into this predictor.
+   * 
+   * @param other Other predictor
+   * @return {@code this}
+   */
+  public TrendPredictor merge(TrendPredictor other) {
+    if (other.numvalues == 0) {
+      return this;
+    }
+    checkMetadata(other.unit, other.description);
+    trend = null;
+    if (equations != null && other.equations != null) {
+      equations.merge(other.equations);
+      numvalues += other.numvalues;
+    } else if (equations == null && other.equations == null) {
+      for (int i = 0; i < other.numvalues; i++) {
+        add(other.values[i], other.weights[i], other.targets[i]);
       }
     } else {
-      values[numvalues] = value;
-      weights[numvalues] = weight;
-      targets[numvalues] = target;
-      ++numvalues;
+      throw new IllegalStateException("Cannot merge predictors with and without stored records.");
     }
     return this;
   }
@@ -105,12 +334,128 @@ public class TrendPredictor {
     StringBuilder buf = new StringBuilder();
     buf.append(description).append("[").append(unit).append("]: ");
     buf.append(String.format("%d measurements ", numvalues));
-
-    double lambda = .1;
-    findFit(targets, values, numvalues, lambda, buf);
+    if (selectLambda) {
+      buf.append(String.format("lambda: %.3g ", getTrend().getLambda()));
+    }
+    buf.append(getTrend());
     return buf.toString();
   }
 
+  /**
+   * Get the fitted trend, fitting it if necessary.
+   * 
+   * @return Trend
+   */
+  @Override
+  public Trend getTrend() {
+    if (trend == null) {
+      if (equations != null) {
+        trend = findFit(equations, lambda, selectLambda);
+        return trend;
+      }
+      final double[] w = getFitWeights();
+      trend = findFit(getEquations(w), lambda, selectLambda);
+      if (resamples > 0 && numvalues > 0) {
+        bootstrap(trend, w);
+      }
+    }
+    return trend;
+  }
+
+  /**
+   * Get the sufficient statistics for fitting.
+   * 
+   * @return Normal equations
+   */
+  NormalEquations getEquations() {
+    return equations != null ? equations : getEquations(getFitWeights());
+  }
+
+  /**
+   * Build the sufficient statistics of the stored measurements.
+   * 
+   * @param w Weights of the measurements in the fit
+   * @return Normal equations
+   */
+  private NormalEquations getEquations(double[] w) {
+    NormalEquations eq = new NormalEquations(NUM_FUNCTIONS);
+    double[] row = new double[NUM_FUNCTIONS];
+    for (int i = 0; i < numvalues; i++) {
+      for (Function f : FUNCTIONS) {
+        row[f.ordinal()] = f.map(targets[i]);
+      }
+      if (w[i] > 0) {
+        eq.add(row, values[i], w[i]);
+      }
+    }
+    return eq;
+  }
+
+  /**
+   * Get the weights of the stored measurements in the fit, including the
+   * robust weights.
+   * 
+   * @return Weights
+   */
+  private double[] getFitWeights() {
+    double[] w = new double[numvalues];
+    final RobustLeastSquaresFit fit = robust != null ? robustFit() : null;
+    for (int i = 0; i < numvalues; i++) {
+      w[i] = (weighted ? weights[i] : 1.) * (fit != null ? fit.getRobustWeight(i) : 1.);
+    }
+    return w;
+  }
+
+  /**
+   * Compute bootstrap confidence intervals of the coefficients of a trend, by
+   * refitting its functions to resampled measurements.
+   * 
+   * @param trend Trend
+   * @param w Weights of the measurements in the fit
+   */
+  private void bootstrap(Trend trend, double[] w) {
+    final int dim = trend.functions.length;
+    double[] x = new double[numvalues * dim];
+    for (int i = 0, off = 0; i < numvalues; i++, off += dim) {
+      for (int j = 0; j < dim; j++) {
+        x[off + j] = trend.functions[j].map(targets[i]);
+      }
+    }
+    double[] lower = new double[dim], upper = new double[dim];
+    new Bootstrap(resamples, Bootstrap.DEFAULT_LEVEL).coefficientIntervals(x, values, w, numvalues, dim, trend.lambda, selectLambda, random, lower, upper);
+    trend.setConfidenceIntervals(lower, upper);
+  }
+
+  /**
+   * Fit the usual candidate functions robustly, to find the outliers.
+   * 
+   * The model selection then uses the robust weights of this fit. The
+   * measurements of each scenario (i.e. target) are added consecutively, and
+   * each of these blocks gets its own residual scale.
+   * 
+   * @return Robust fit
+   */
+  private RobustLeastSquaresFit robustFit() {
+    final int dim = BASIC_FUNCTIONS.length;
+    double[] x = new double[numvalues * dim], w = new double[numvalues];
+    int[] blocks = new int[numvalues + 1];
+    int numblocks = 0;
+    for (int i = 0, off = 0; i < numvalues; i++, off += dim) {
+      if (i > 0 && targets[i] != targets[i - 1]) {
+        blocks[numblocks++] = i;
+      }
+      for (int j = 0; j < dim; j++) {
+        x[off + j] = BASIC_FUNCTIONS[j].map(targets[i]);
+      }
+      w[i] = weighted ? weights[i] : 1.;
+    }
+    // A relative lambda (for GCV) is not meaningful here, use a plain fit.
+    RobustLeastSquaresFit fit = new RobustLeastSquaresFit(dim, robust, selectLambda ? 0. : lambda);
+    blocks[numblocks++] = numvalues;
+    fit.fit(x, values, w, numvalues, blocks);
+    return fit;
+  }
+
   static final double DIV_LOG2 = 1 / Math.log(2);
 
   enum Function {
@@ -171,67 +516,128 @@ public class TrendPredictor {
     abstract double map(double in);
   };
 
-  static void findFit(double[] values, double[] targets, int numvalues, double lambda, StringBuilder buf) {
-    // Note: usually we don't have many degrees of freedom, so fitting with
-    // fewer functions usually works better.
-    ArrayList<Function> functions = new ArrayList<Function>();
-    functions.add(Function.CONST);
-    functions.add(Function.LOG2N);
-    // functions.add(Function.LOGEN);
-    // functions.add(Function.LOG10N);
-    functions.add(Function.LINEAR);
-    functions.add(Function.NLOG2N);
-    functions.add(Function.QUADRATIC);
-    // functions.add(Function.CUBIC);
-    // functions.add(Function.EXP2N);
-
-    double[] scores;
+  /**
+   * Fit a trend, with the configured selection strategy.
+   * 
+   * @param equations Normal equations
+   * @param lambda Regularization
+   * @param selectLambda Select the regularization by cross validation
+   * @return Trend
+   */
+  static Trend findFit(NormalEquations equations, double lambda, boolean selectLambda) {
+    if (useNNLS) {
+      return findNonNegativeFit(equations, lambda, selectLambda);
+    }
+    if (selection == Selection.GREEDY) {
+      return findGreedyFit(equations, lambda, selectLambda);
+    }
+    return findBestSubsetFit(equations, lambda, selectLambda);
+  }
+
+  /**
+   * Exact search over all functions, for the subset with positive
+   * coefficients that minimizes the information criterion.
+   * 
+   * @param equations Normal equations
+   * @param lambda Regularization of the final coefficients
+   * @param selectLambda Select the regularization by cross validation
+   * @return Trend
+   */
+  private static Trend findBestSubsetFit(NormalEquations equations, double lambda, boolean selectLambda) {
+    int[] candidates = new int[NUM_FUNCTIONS];
+    for (int j = 0; j < NUM_FUNCTIONS; j++) {
+      candidates[j] = j;
+    }
+    final double penalty = selection == Selection.AIC ? 2. : Math.log(equations.getCount());
+    int[] cols = new BestSubsetSelection(equations, candidates, penalty, NUM_FUNCTIONS, true).run();
+    final int n = cols.length;
+    ArrayList<Function> functions = new ArrayList<Function>(n);
+    for (int c : cols) {
+      functions.add(FUNCTIONS[c]);
+    }
+    double[] scores = new double[n];
+    if (selectLambda) {
+      lambda = new RidgePath(equations, cols).selectLambda();
+    }
+    if (n > 0) {
+      // Final coefficients, with the usual regularization:
+      LeastSquaresFit fit = new LeastSquaresFit(n, selectLambda);
+      fit.factor(equations, cols, lambda);
+      fit.solve(scores);
+    }
+    return new Trend(equations, functions, scores, lambda, selectLambda, true);
+  }
+
+  /**
+   * Non-negative least squares fit of the basic functions.
+   * 
+   * @param equations Normal equations
+   * @param lambda Regularization, only reported
+   * @param selectLambda Relative regularization, only reported
+   * @return Trend
+   */
+  private static Trend findNonNegativeFit(NormalEquations equations, double lambda, boolean selectLambda) {
+    int[] cols = ordinals(BASIC_FUNCTIONS);
+    NonNegativeLeastSquaresFit.Result result = new NonNegativeLeastSquaresFit().fit(equations, cols);
+    return new Trend(equations, Arrays.asList(BASIC_FUNCTIONS), result.getSolution(), lambda, selectLambda, result.isConverged());
+  }
+
+  /**
+   * Fit the basic functions, and greedily remove the functions with the
+   * smallest coefficients.
+   * 
+   * @param equations Normal equations
+   * @param lambda Regularization
+   * @param selectLambda Select the regularization by cross validation
+   * @return Trend
+   */
+  private static Trend findGreedyFit(NormalEquations equations, double lambda, boolean selectLambda) {
+    int[] cols = ordinals(BASIC_FUNCTIONS);
+    int n = cols.length;
+    ArrayList<Function> functions = new ArrayList<Function>(Arrays.asList(BASIC_FUNCTIONS));
+    if (selectLambda) {
+      lambda = new RidgePath(equations, cols).selectLambda();
+    }
+    // Factor once, and remove the worst functions by updating the factor.
+    LeastSquaresFit fit = new LeastSquaresFit(n, selectLambda);
+    fit.factor(equations, cols, lambda);
+    double[] scores = new double[n];
     while (true) {
-      scores = tryFit(values, targets, numvalues, lambda, functions).data;
+      fit.solve(scores);
       int worst = -1;
       double worstval = Double.POSITIVE_INFINITY;
       double avg = 0;
-      for (int i = 0; i < scores.length; i++) {
+      for (int i = 0; i < n; i++) {
         avg += scores[i];
         if (scores[i] < worstval) {
           worstval = scores[i];
           worst = i;
         }
       }
-      avg /= numvalues;
+      avg /= equations.getCount();
 
-      if (worstval >= avg * .1 || worst < 0 || scores.length == 1 || useNNLS) {
+      if (worstval >= avg * .1 || worst < 0 || n == 1) {
         break;
       }
+      fit.removeColumn(worst);
       functions.remove(worst);
+      --n;
     }
-    boolean first = true;
-    for (int i = 0; i < scores.length; i++) {
-      if (scores[i] > 0 || scores[i] < 0) {
-        if (!first) {
-          buf.append(' ');
-        }
-        first = false;
-        buf.append(functions.get(i)).append(": ").append(scores[i]);
-      }
-    }
+    return new Trend(equations, functions, scores, lambda, selectLambda, true);
   }
 
-  static DenseMatrix64F tryFit(double[] values, double[] targets, int numvalues, double lambda, List<Function> functions) {
-    int dof = functions.size();
-    DenseMatrix64F mat = new DenseMatrix64F(numvalues, dof);
-    for (int i = 0; i < numvalues; i++) {
-      for (int j = 0; j < dof; j++) {
-        mat.unsafe_set(i, j, functions.get(j).map(values[i]));
-      }
-    }
-    DenseMatrix64F vec = new DenseMatrix64F(numvalues, 1);
-    System.arraycopy(targets, 0, vec.data, 0, numvalues);
-    if (useNNLS) {
-      return NonNegativeLeastSquaresFit.nnls(mat, vec);
-    } else {
-      return LeastSquaresFit.tikhonovLeastSquares(mat, vec, lambda);
+  /**
+   * Get the column indexes of functions.
+   * 
+   * @param functions Functions
+   * @return Column indexes
+   */
+  private static int[] ordinals(Function[] functions) {
+    int[] cols = new int[functions.length];
+    for (int j = 0; j < functions.length; j++) {
+      cols[j] = functions[j].ordinal();
     }
+    return cols;
   }
 
   /**
@@ -0,0 +1,69 @@
+package com.googlecode.caliperanalyze;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Measurement;
+
+/**
+ * Trial handler that buffers the trials, so they can be passed on to another
+ * handler later, e.g. when a file was read in a background thread.
+ * 
+ * @author Erich Schubert
+ */
+public class TrialBuffer implements TrialHandler {
+  /** Benchmark specifications */
+  private final ArrayList<BenchmarkSpec> specs = new ArrayList<>();
+
+  /** Measurements */
+  private final ArrayList<List<Measurement>> measurements = new ArrayList<>();
+
+  /** Error that occurred while filling the buffer, if any. */
+  private Exception error = null;
+
+  @Override
+  public void handleTrial(BenchmarkSpec spec, List<Measurement> measurements) {
+    this.specs.add(spec);
+    this.measurements.add(measurements);
+  }
+
+  /**
+   * Pass all buffered trials on to another handler, in order.
+   * 
+   * @param handler Handler
+   */
+  public void replay(TrialHandler handler) {
+    for(int i = 0; i < specs.size(); i++) {
+      handler.handleTrial(specs.get(i), measurements.get(i));
+    }
+  }
+
+  /**
+   * Get the number of buffered trials.
+   * 
+   * @return Number of trials
+   */
+  public int size() {
+    return specs.size();
+  }
+
+  /**
+   * Get the error that occurred while filling the buffer.
+   * 
+   * @return Error, or {@code null}
+   */
+  public Exception getError() {
+    return error;
+  }
+
+  /**
+   * Record an error that occurred while filling the buffer. The trials read
+   * before the error remain valid.
+   * 
+   * @param error Error
+   */
+  public void setError(Exception error) {
+    this.error = error;
+  }
+}
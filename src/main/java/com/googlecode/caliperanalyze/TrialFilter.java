@@ -0,0 +1,245 @@
+package com.googlecode.caliperanalyze;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Measurement;
+
+/**
+ * Filter trials by their benchmark class, method and parameters.
+ * 
+ * A filter is a conjunction of expressions of the form
+ * {@code key operator value}, such as {@code BenchmarkMethod=timeQuick*} or
+ * {@code size>=1000}. The key is a parameter name, or one of the pseudo
+ * parameters {@link TrialStore#CLASS} and {@link TrialStore#METHOD}.
+ * 
+ * Operators:
+ * <ul>
+ * <li>{@code =} and {@code !=} compare strings, where {@code *} and {@code ?}
+ * are wildcards for any string and any single character.</li>
+ * <li>{@code <}, {@code <=}, {@code >} and {@code >=} compare numbers; values
+ * that are not numeric never match.</li>
+ * </ul>
+ * Trials that do not have the parameter never match, not even with
+ * {@code !=}.
+ * 
+ * The filter is evaluated by the {@link CaliperResultsReader} as soon as the
+ * benchmark specification of a trial is decoded, so that the measurements of
+ * rejected trials are skipped without decoding them. Filters are immutable
+ * once all expressions have been added, and thus thread safe.
+ * 
+ * @author Erich Schubert
+ */
+public class TrialFilter {
+  /**
+   * Comparison operators, longer operators first for parsing.
+   */
+  private enum Operator {
+    /** Not equal */
+    NE("!="),
+    /** Less or equal */
+    LE("<="),
+    /** Greater or equal */
+    GE(">="),
+    /** Equal */
+    EQ("="),
+    /** Less than */
+    LT("<"),
+    /** Greater than */
+    GT(">");
+
+    /** Symbol */
+    final String symbol;
+
+    /**
+     * Constructor.
+     * 
+     * @param symbol Symbol
+     */
+    private Operator(String symbol) {
+      this.symbol = symbol;
+    }
+  }
+
+  /**
+   * A single expression of the filter.
+   * 
+   * @author Erich Schubert
+   */
+  private static class Condition {
+    /** Parameter name */
+    final String key;
+
+    /** Operator */
+    final Operator op;
+
+    /** Value to compare to */
+    final String value;
+
+    /** Numerical value, NaN if not numeric */
+    final double number;
+
+    /** Wildcard pattern, {@code null} for plain strings */
+    final Pattern pattern;
+
+    /**
+     * Constructor.
+     * 
+     * @param key Parameter name
+     * @param op Operator
+     * @param value Value to compare to
+     */
+    Condition(String key, Operator op, String value) {
+      this.key = key;
+      this.op = op;
+      this.value = value;
+      this.number = parseNumber(value);
+      this.pattern = value.indexOf('*') >= 0 || value.indexOf('?') >= 0 ? compileWildcards(value) : null;
+      if(op != Operator.EQ && op != Operator.NE && number != number) {
+        throw new IllegalArgumentException("Not a number in filter expression: " + key + op.symbol + value);
+      }
+    }
+
+    /**
+     * Test a parameter value.
+     * 
+     * @param actual Parameter value, may be {@code null}
+     * @return {@code true} if the condition is satisfied
+     */
+    boolean test(String actual) {
+      if(actual == null) {
+        return false;
+      }
+      switch(op){
+      case EQ:
+        return matches(actual);
+      case NE:
+        return !matches(actual);
+      default:
+        final double x = parseNumber(actual);
+        if(x != x) {
+          return false;
+        }
+        return op == Operator.LT ? x < number : op == Operator.LE ? x <= number : op == Operator.GT ? x > number : x >= number;
+      }
+    }
+
+    /**
+     * Test for equality, with wildcards.
+     * 
+     * @param actual Parameter value
+     * @return {@code true} if equal
+     */
+    private boolean matches(String actual) {
+      return pattern != null ? pattern.matcher(actual).matches() : value.equals(actual);
+    }
+  }
+
+  /** Conditions, all must be satisfied */
+  private final List<Condition> conditions = new ArrayList<>();
+
+  /**
+   * Constructor, for a filter accepting all trials.
+   */
+  public TrialFilter() {
+    super();
+  }
+
+  /**
+   * Add an expression to the filter.
+   * 
+   * @param expression Expression, e.g. {@code size>=1000}
+   * @return {@code this}
+   * @throws IllegalArgumentException for invalid expressions
+   */
+  public TrialFilter add(String expression) {
+    for(int i = 0; i < expression.length(); i++) {
+      for(Operator op : Operator.values()) {
+        if(expression.startsWith(op.symbol, i)) {
+          if(i == 0) {
+            throw new IllegalArgumentException("Missing parameter name in filter expression: " + expression);
+          }
+          conditions.add(new Condition(expression.substring(0, i).trim(), op, expression.substring(i + op.symbol.length()).trim()));
+          return this;
+        }
+      }
+    }
+    throw new IllegalArgumentException("Missing operator in filter expression: " + expression);
+  }
+
+  /**
+   * Test a benchmark specification.
+   * 
+   * @param spec Benchmark specification
+   * @return {@code true} if all conditions are satisfied
+   */
+  public boolean accept(BenchmarkSpec spec) {
+    for(Condition c : conditions) {
+      final String actual = TrialStore.CLASS.equals(c.key) ? spec.className() : TrialStore.METHOD.equals(c.key) ? spec.methodName() : spec.parameters().get(c.key);
+      if(!c.test(actual)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Wrap a trial handler, to only pass on the accepted trials. Used where the
+   * trials were not filtered while reading, e.g. when replaying a cache.
+   * 
+   * @param handler Handler
+   * @return Filtering handler
+   */
+  public TrialHandler wrap(final TrialHandler handler) {
+    return new TrialHandler() {
+      @Override
+      public void handleTrial(BenchmarkSpec spec, List<Measurement> measurements) {
+        if(accept(spec)) {
+          handler.handleTrial(spec, measurements);
+        }
+      }
+    };
+  }
+
+  /**
+   * Parse a number.
+   * 
+   * @param str String
+   * @return Number, or NaN
+   */
+  private static double parseNumber(String str) {
+    try {
+      return Double.parseDouble(str);
+    }
+    catch(NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Compile a pattern with the wildcards {@code *} and {@code ?}.
+   * 
+   * @param wildcards Pattern with wildcards
+   * @return Regular expression
+   */
+  private static Pattern compileWildcards(String wildcards) {
+    StringBuilder buf = new StringBuilder();
+    int start = 0;
+    for(int i = 0; i < wildcards.length(); i++) {
+      final char c = wildcards.charAt(i);
+      if(c == '*' || c == '?') {
+        if(i > start) {
+          buf.append(Pattern.quote(wildcards.substring(start, i)));
+        }
+        buf.append(c == '*' ? ".*" : ".");
+        start = i + 1;
+      }
+    }
+    if(start < wildcards.length()) {
+      buf.append(Pattern.quote(wildcards.substring(start)));
+    }
+    return Pattern.compile(buf.toString());
+  }
+}
@@ -0,0 +1,25 @@
+package com.googlecode.caliperanalyze;
+
+import java.util.List;
+
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Measurement;
+
+/**
+ * Callback interface to process trials while a result file is being read,
+ * instead of materializing all of them in a collection first.
+ * 
+ * Only the parts of a trial used for analysis are passed on: the benchmark
+ * specification (class, method and parameters) and the measurements.
+ * 
+ * @author Erich Schubert
+ */
+public interface TrialHandler {
+  /**
+   * Process a single trial.
+   * 
+   * @param spec Benchmark specification of the trial
+   * @param measurements Measurements of the trial
+   */
+  void handleTrial(BenchmarkSpec spec, List<Measurement> measurements);
+}
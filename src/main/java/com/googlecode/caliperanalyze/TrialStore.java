@@ -0,0 +1,435 @@
+package com.googlecode.caliperanalyze;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Measurement;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.googlecode.caliperanalyze.util.StringDictionary;
+
+/**
+ * Columnar in-memory store of trials, filled while the result files are read.
+ * 
+ * Trials are grouped by scenario. Parameter names and values are dictionary
+ * encoded, so each scenario is an array of integer codes. The benchmark class
+ * and method are stored as the pseudo parameters {@link #CLASS} and
+ * {@link #METHOD}. Unit and description are checked to be consistent within a
+ * scenario, and then stored once per scenario.
+ * 
+ * Each scenario is aggregated while reading. Optionally (e.g. for robust
+ * trends or the bootstrap), the individual measurements are kept in primitive
+ * columns, with the measurements of each scenario chained via a "next" column.
+ * 
+ * @author Erich Schubert
+ */
+public class TrialStore implements TrialHandler {
+  /**
+   * Value printed for parameters that are not defined for a scenario.
+   * 
+   * This is a separate instance, and never stored in the parameter values, so
+   * that it cannot be confused with an actual value {@code "-"}; use
+   * {@link ScenarioIndex#isMissing} to test for missing values.
+   */
+  public static final String MISSING = new String("-");
+
+  /**
+   * Pseudo parameter for the benchmark method.
+   */
+  public static final String METHOD = "BenchmarkMethod";
+
+  /**
+   * Pseudo parameter for the benchmark class.
+   */
+  public static final String CLASS = "BenchmarkClass";
+
+  /**
+   * Initial size for allocations.
+   */
+  private static final int INITIAL_SIZE = 21;
+
+  /** Parameter names (the code is the parameter slot) */
+  private final StringDictionary names = new StringDictionary();
+
+  /** Parameter values, units and descriptions */
+  private final StringDictionary strings = new StringDictionary();
+
+  /** Lookup of scenarios */
+  private final Map<BenchmarkSpec, Integer> lookup = new HashMap<>();
+
+  /** Scenario parameters: value code by parameter slot, -1 for missing */
+  private final ArrayList<int[]> scenarioParams = new ArrayList<>();
+
+  /** Scenario aggregates */
+  private final ArrayList<AggregateMeasurements> aggregates = new ArrayList<>();
+
+  /** Scenario columns: unit and description codes, or -1 */
+  private int[] units = new int[INITIAL_SIZE], descriptions = new int[INITIAL_SIZE];
+
+  /** Scenario columns: first and last measurement, or -1 */
+  private int[] first = new int[INITIAL_SIZE], last = new int[INITIAL_SIZE];
+
+  /** Number of scenarios */
+  private int numscenarios = 0;
+
+  /** Measurement columns: magnitude and weight */
+  private double[] magnitudes = new double[INITIAL_SIZE], weights = new double[INITIAL_SIZE];
+
+  /** Measurement column: next measurement of the same scenario, or -1 */
+  private int[] next = new int[INITIAL_SIZE];
+
+  /** Number of measurements kept */
+  private int nummeasurements = 0;
+
+  /** Number of trials added */
+  private int numtrials = 0;
+
+  /** Keep the individual measurements */
+  private final boolean keepMeasurements;
+
+  /** Compression of the quantile sketches, 0 to disable */
+  private final double compression;
+
+  /** Estimator of location and scale of the aggregates */
+  private final AggregateMeasurements.Estimator estimator;
+
+  /**
+   * Constructor.
+   * 
+   * @param keepMeasurements Keep the individual measurements, not only the
+   *        aggregates.
+   */
+  public TrialStore(boolean keepMeasurements) {
+    this(keepMeasurements, 0);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param keepMeasurements Keep the individual measurements, not only the
+   *        aggregates.
+   * @param compression Also estimate quantiles for each scenario, with the
+   *        given sketch compression; 0 to disable.
+   */
+  public TrialStore(boolean keepMeasurements, double compression) {
+    this(keepMeasurements, compression, AggregateMeasurements.Estimator.MEAN);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param keepMeasurements Keep the individual measurements, not only the
+   *        aggregates.
+   * @param compression Also estimate quantiles for each scenario, with the
+   *        given sketch compression; 0 to disable.
+   * @param estimator Estimator of location and scale of the aggregates
+   */
+  public TrialStore(boolean keepMeasurements, double compression, AggregateMeasurements.Estimator estimator) {
+    super();
+    this.keepMeasurements = keepMeasurements;
+    this.compression = compression;
+    this.estimator = estimator;
+    names.encode(CLASS);
+    names.encode(METHOD);
+  }
+
+  @Override
+  public void handleTrial(BenchmarkSpec spec, List<Measurement> measurements) {
+    Integer scenario = lookup.get(spec);
+    if(scenario == null) {
+      scenario = addScenario(spec);
+      lookup.put(spec, scenario);
+    }
+    final int s = scenario;
+    ++numtrials;
+    for(Measurement m : measurements) {
+      final String unit = m.value().unit(), description = m.description();
+      if(units[s] < 0) {
+        units[s] = strings.encode(unit);
+        descriptions[s] = strings.encode(description);
+        aggregates.get(s).setMetadata(unit, description);
+      }
+      else {
+        // Sanity check for units
+        if(!strings.get(units[s]).equals(unit)) {
+          throw new RuntimeException("Inconsistent units are not supported.");
+        }
+        // Sanity check for descriptions
+        if(!strings.get(descriptions[s]).equals(description)) {
+          throw new RuntimeException("Multiple types of measuresments are not supported.");
+        }
+      }
+      final double magnitude = m.value().magnitude(), weight = m.weight();
+      aggregates.get(s).add(magnitude / weight, weight);
+      if(keepMeasurements) {
+        addMeasurement(s, magnitude, weight);
+      }
+    }
+  }
+
+  /**
+   * Add a new scenario.
+   * 
+   * @param spec Benchmark specification
+   * @return Scenario number
+   */
+  private int addScenario(BenchmarkSpec spec) {
+    // TODO: also use Host and VM parameters,
+    // in case someone is benchmarking VMs!
+    int[] params = new int[2 + spec.parameters().size()];
+    Arrays.fill(params, -1);
+    for(Map.Entry<String, String> entry : spec.parameters().entrySet()) {
+      final int slot = names.encode(entry.getKey());
+      if(slot >= params.length) {
+        final int oldsize = params.length;
+        params = Arrays.copyOf(params, slot + 1);
+        Arrays.fill(params, oldsize, params.length, -1);
+      }
+      params[slot] = strings.encode(entry.getValue());
+    }
+    // Pseudo parameters for class and method, unless they are real parameters:
+    if(params[0] < 0 && spec.className() != null) {
+      params[0] = strings.encode(spec.className());
+    }
+    if(params[1] < 0 && spec.methodName() != null) {
+      params[1] = strings.encode(spec.methodName());
+    }
+    if(numscenarios == units.length) {
+      int newsize = (units.length << 1) + 1;
+      units = Arrays.copyOf(units, newsize);
+      descriptions = Arrays.copyOf(descriptions, newsize);
+      first = Arrays.copyOf(first, newsize);
+      last = Arrays.copyOf(last, newsize);
+    }
+    units[numscenarios] = descriptions[numscenarios] = -1;
+    first[numscenarios] = last[numscenarios] = -1;
+    scenarioParams.add(params);
+    AggregateMeasurements aggregate = new AggregateMeasurements();
+    if(compression > 0) {
+      aggregate.enableQuantiles(compression);
+    }
+    aggregate.setEstimator(estimator);
+    aggregates.add(aggregate);
+    return numscenarios++;
+  }
+
+  /**
+   * Append a measurement to the columns.
+   * 
+   * @param s Scenario
+   * @param magnitude Magnitude
+   * @param weight Weight
+   */
+  private void addMeasurement(int s, double magnitude, double weight) {
+    if(nummeasurements == magnitudes.length) {
+      int newsize = (magnitudes.length << 1) + 1;
+      magnitudes = Arrays.copyOf(magnitudes, newsize);
+      weights = Arrays.copyOf(weights, newsize);
+      next = Arrays.copyOf(next, newsize);
+    }
+    magnitudes[nummeasurements] = magnitude;
+    weights[nummeasurements] = weight;
+    next[nummeasurements] = -1;
+    if(last[s] < 0) {
+      first[s] = nummeasurements;
+    }
+    else {
+      next[last[s]] = nummeasurements;
+    }
+    last[s] = nummeasurements;
+    ++nummeasurements;
+  }
+
+  /**
+   * Build a multimap of all benchmark parameters and their values.
+   * 
+   * Only actual values are included; see {@link #getPartialParameters} for
+   * the parameters that are not defined for every scenario.
+   * 
+   * @return Parameter values
+   */
+  public SetMultimap<String, String> getParameterValues() {
+    SetMultimap<String, String> spec = HashMultimap.create();
+    for(int s = 0; s < numscenarios; s++) {
+      for(int slot = 0; slot < names.size(); slot++) {
+        final int code = getParameterCode(s, slot);
+        if(code >= 0) {
+          spec.put(names.get(slot), strings.get(code));
+        }
+      }
+    }
+    return spec;
+  }
+
+  /**
+   * Get the parameters that are defined for some, but not all scenarios.
+   * 
+   * @return Parameter names
+   */
+  public Set<String> getPartialParameters() {
+    boolean[] defined = new boolean[names.size()], missing = new boolean[names.size()];
+    for(int s = 0; s < numscenarios; s++) {
+      for(int slot = 0; slot < missing.length; slot++) {
+        if(getParameterCode(s, slot) >= 0) {
+          defined[slot] = true;
+        }
+        else {
+          missing[slot] = true;
+        }
+      }
+    }
+    Set<String> partial = new HashSet<>();
+    for(int slot = 0; slot < missing.length; slot++) {
+      if(missing[slot] && defined[slot]) {
+        partial.add(names.get(slot));
+      }
+    }
+    return partial;
+  }
+
+  /**
+   * Get the number of trials added.
+   * 
+   * @return Number of trials
+   */
+  public int numTrials() {
+    return numtrials;
+  }
+
+  /**
+   * Get the number of scenarios.
+   * 
+   * @return Number of scenarios
+   */
+  public int numScenarios() {
+    return numscenarios;
+  }
+
+  /**
+   * Get the slot of a parameter.
+   * 
+   * @param name Parameter name
+   * @return Slot, or -1 if the parameter does not occur.
+   */
+  public int getParameterSlot(String name) {
+    return names.find(name);
+  }
+
+  /**
+   * Get the value code of a parameter.
+   * 
+   * @param s Scenario number
+   * @param slot Parameter slot
+   * @return Value code, -1 if missing
+   */
+  public int getParameterCode(int s, int slot) {
+    int[] params = scenarioParams.get(s);
+    return slot >= 0 && slot < params.length ? params[slot] : -1;
+  }
+
+  /**
+   * Get the value of a parameter.
+   * 
+   * @param s Scenario number
+   * @param slot Parameter slot
+   * @return Value, or {@link #MISSING}
+   */
+  public String getParameter(int s, int slot) {
+    return decode(getParameterCode(s, slot));
+  }
+
+  /**
+   * Get the number of value codes in use.
+   * 
+   * @return Number of codes, codes are {@code 0 <= code < numCodes()}
+   */
+  public int numCodes() {
+    return strings.size();
+  }
+
+  /**
+   * Get the string for a value code.
+   * 
+   * @param code Value code, -1 for missing
+   * @return Value, or {@link #MISSING}
+   */
+  public String decode(int code) {
+    return code >= 0 ? strings.get(code) : MISSING;
+  }
+
+  /**
+   * Get the aggregated measurements of a scenario.
+   * 
+   * @param s Scenario number
+   * @return Aggregate
+   */
+  public AggregateMeasurements getAggregate(int s) {
+    return aggregates.get(s);
+  }
+
+  /**
+   * Get the unit of a scenario.
+   * 
+   * @param s Scenario number
+   * @return Unit, {@code null} if there are no measurements
+   */
+  public String getUnit(int s) {
+    return units[s] >= 0 ? strings.get(units[s]) : null;
+  }
+
+  /**
+   * Get the description of a scenario.
+   * 
+   * @param s Scenario number
+   * @return Description, {@code null} if there are no measurements
+   */
+  public String getDescription(int s) {
+    return descriptions[s] >= 0 ? strings.get(descriptions[s]) : null;
+  }
+
+  /**
+   * Get the first kept measurement of a scenario.
+   * 
+   * @param s Scenario number
+   * @return Measurement number, or -1
+   */
+  public int firstMeasurement(int s) {
+    return first[s];
+  }
+
+  /**
+   * Get the next measurement of the same scenario.
+   * 
+   * @param m Measurement number
+   * @return Measurement number, or -1
+   */
+  public int nextMeasurement(int m) {
+    return next[m];
+  }
+
+  /**
+   * Get the value of a measurement, i.e. magnitude divided by weight.
+   * 
+   * @param m Measurement number
+   * @return Value
+   */
+  public double getValue(int m) {
+    return magnitudes[m] / weights[m];
+  }
+
+  /**
+   * Get the weight of a measurement.
+   * 
+   * @param m Measurement number
+   * @return Weight
+   */
+  public double getWeight(int m) {
+    return weights[m];
+  }
+}
@@ -0,0 +1,281 @@
+package com.googlecode.caliperanalyze.util;
+
+/**
+ * Exact best subset selection for linear least squares, by an information
+ * criterion such as AIC or BIC:
+ * 
+ * score(S) = n * ln(RSS(S) / n) + penalty * |S|
+ * 
+ * All subsets of the candidate columns are enumerated depth-first, each by
+ * adding one column to its parent. The Cholesky factorization of the parent
+ * is shared, so every subset costs a single column update and two triangular
+ * solves (see {@link LeastSquaresFit}).
+ * 
+ * Branch and bound (as in the leaps and bounds algorithm): all subsets in the
+ * branch that adds candidate i to a parent subset are contained in the union
+ * of the parent and the candidates from i on, so none of them has a smaller
+ * residual sum of squares than this union, or fewer columns than the parent
+ * plus one. Branches where this bound cannot improve the best score are
+ * skipped. The bounds of all branches of a parent are computed in one pass,
+ * by adding the candidates to the parent in reverse order; they increase with
+ * i, so the remaining branches of the parent can be skipped, too. Subsets of
+ * the maximum size are evaluated without a bound of their own, as this would
+ * cost as much as the evaluation.
+ * 
+ * Optionally, only subsets with positive coefficients are accepted, e.g. for
+ * runtimes, which are sums of positive costs. Subsets with negative
+ * coefficients are still extended, as their supersets may be positive; the
+ * unconstrained residuals remain valid bounds.
+ * 
+ * Columns that are linearly dependent on the columns already in a subset are
+ * not added, so collinear candidates (e.g. logarithms to different bases) are
+ * never used together. Candidates with non-finite or zero statistics are
+ * ignored.
+ * 
+ * The size of the subsets can be limited, which makes the search feasible for
+ * larger numbers of candidates (e.g. products of basis functions).
+ * 
+ * Reference:
+ * <p>
+ * G. M. Furnival and R. W. Wilson<br />
+ * Regressions by Leaps and Bounds<br />
+ * Technometrics 16(4), 1974
+ * </p>
+ * 
+ * @author Erich Schubert
+ */
+public class BestSubsetSelection {
+  /** Normal equations */
+  private final NormalEquations eq;
+
+  /** Usable candidate columns */
+  private final int[] candidates;
+
+  /** Penalty per column */
+  private final double penalty;
+
+  /** Maximum subset size */
+  private final int maxsize;
+
+  /** Number of observations */
+  private final double n;
+
+  /** Lower limit for residuals, against rounding */
+  private final double minrss;
+
+  /** Workspaces, one per depth */
+  private final LeastSquaresFit[] fits;
+
+  /** Coefficient buffer */
+  private final double[] coef;
+
+  /** Only accept subsets with positive coefficients */
+  private final boolean positive;
+
+  /** Workspace for the bounds */
+  private final LeastSquaresFit scratch;
+
+  /**
+   * Lower bounds of the score without penalty, per depth and first candidate
+   * of the branch
+   */
+  private final double[][] bounds;
+
+  /** Best subset */
+  private int[] best = new int[0];
+
+  /** Best score */
+  private double bestscore = Double.POSITIVE_INFINITY;
+
+  /** Number of subsets evaluated */
+  private int evaluated = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param eq Normal equations
+   * @param candidates Candidate columns
+   * @param penalty Penalty per column, e.g. 2 for AIC, ln(n) for BIC.
+   */
+  public BestSubsetSelection(NormalEquations eq, int[] candidates, double penalty) {
+    this(eq, candidates, penalty, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param eq Normal equations
+   * @param candidates Candidate columns
+   * @param penalty Penalty per column, e.g. 2 for AIC, ln(n) for BIC.
+   * @param maxsize Maximum number of columns to select
+   */
+  public BestSubsetSelection(NormalEquations eq, int[] candidates, double penalty, int maxsize) {
+    this(eq, candidates, penalty, maxsize, false);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param eq Normal equations
+   * @param candidates Candidate columns
+   * @param penalty Penalty per column, e.g. 2 for AIC, ln(n) for BIC.
+   * @param maxsize Maximum number of columns to select
+   * @param positive Only accept subsets with positive coefficients
+   */
+  public BestSubsetSelection(NormalEquations eq, int[] candidates, double penalty, int maxsize, boolean positive) {
+    super();
+    this.positive = positive;
+    this.eq = eq;
+    this.penalty = penalty;
+    this.n = eq.getCount();
+    this.minrss = Math.max(eq.getYtY() * 1e-15, Double.MIN_NORMAL);
+    int[] usable = new int[candidates.length];
+    int k = 0;
+    for (int c : candidates) {
+      final double d = eq.getXtX(c, c), t = eq.getXty(c);
+      if (d > 0 && !Double.isInfinite(d) && !Double.isNaN(t) && !Double.isInfinite(t)) {
+        usable[k++] = c;
+      }
+    }
+    this.candidates = new int[k];
+    System.arraycopy(usable, 0, this.candidates, 0, k);
+    this.maxsize = Math.max(0, Math.min(maxsize, k));
+    this.fits = new LeastSquaresFit[this.maxsize + 1];
+    for (int i = 0; i <= this.maxsize; i++) {
+      fits[i] = new LeastSquaresFit(k);
+    }
+    this.coef = new double[k];
+    this.scratch = new LeastSquaresFit(k);
+    this.bounds = new double[this.maxsize][k];
+  }
+
+  /**
+   * Run the search.
+   * 
+   * @return Best subset of columns, empty if no candidate was usable.
+   */
+  public int[] run() {
+    if (maxsize == 0 || !(n > 0)) {
+      return best;
+    }
+    fits[0].reset(0.);
+    search(0, 0);
+    return best;
+  }
+
+  /**
+   * Extend the subset at the given depth by the candidates from start on.
+   * 
+   * @param depth Depth, the size of the current subset
+   * @param start First candidate to consider
+   */
+  private void search(int depth, int start) {
+    final LeastSquaresFit parent = fits[depth], child = fits[depth + 1];
+    // The children of the last level are leaves, which are as cheap to
+    // evaluate as their bounds; they are covered by the bound of the parent.
+    final boolean leaves = depth + 1 == maxsize;
+    final double[] bound = bounds[depth];
+    if (!leaves) {
+      computeBounds(parent, start, bound);
+    }
+    for (int i = start; i < candidates.length; i++) {
+      // No subset in this branch (or any later branch) can be better:
+      if (!leaves && bound[i] + penalty * (depth + 1) >= bestscore) {
+        return;
+      }
+      child.copyFrom(parent);
+      if (!child.addColumn(eq, candidates[i])) {
+        continue; // Dependent column; all supersets are degenerate, too.
+      }
+      ++evaluated;
+      offer(child);
+      if (!leaves) {
+        search(depth + 1, i + 1);
+      }
+    }
+  }
+
+  /**
+   * Score a subset, and keep it if it is the best so far.
+   * 
+   * @param fit Factorization of the subset
+   */
+  private void offer(LeastSquaresFit fit) {
+    final int k = fit.size();
+    final double score = n * Math.log(residual(fit) / n) + penalty * k;
+    if (score < bestscore && (!positive || isPositive(k))) {
+      bestscore = score;
+      best = new int[k];
+      for (int j = 0; j < k; j++) {
+        best[j] = fit.getColumn(j);
+      }
+    }
+  }
+
+  /**
+   * Compute the lower bounds of the branches of a parent: the score (without
+   * penalty) of the parent together with all candidates from i on.
+   * 
+   * @param parent Factorization of the parent subset
+   * @param start First candidate of the branches
+   * @param bound Output array for the bounds, indexed by candidate
+   */
+  private void computeBounds(LeastSquaresFit parent, int start, double[] bound) {
+    scratch.copyFrom(parent);
+    for (int i = candidates.length - 1; i >= start; i--) {
+      // Dependent columns do not reduce the residual, and are skipped.
+      scratch.addColumn(eq, candidates[i]);
+      bound[i] = n * Math.log(residual(scratch) / n);
+    }
+  }
+
+  /**
+   * Check the coefficients of the last call of {@link #residual}.
+   * 
+   * @param k Number of coefficients
+   * @return {@code true} if all coefficients are positive
+   */
+  private boolean isPositive(int k) {
+    for (int j = 0; j < k; j++) {
+      if (!(coef[j] > 0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compute the residual sum of squares of the least squares solution.
+   * 
+   * @param fit Factorization of the current subset
+   * @return Residual sum of squares
+   */
+  private double residual(LeastSquaresFit fit) {
+    final int k = fit.size();
+    fit.solve(coef);
+    // For the exact least squares solution, RSS = y'y - b'X'y:
+    double rss = eq.getYtY();
+    for (int j = 0; j < k; j++) {
+      rss -= coef[j] * eq.getXty(fit.getColumn(j));
+    }
+    return rss > minrss ? rss : minrss;
+  }
+
+  /**
+   * Get the score of the best subset.
+   * 
+   * @return Score
+   */
+  public double getScore() {
+    return bestscore;
+  }
+
+  /**
+   * Get the number of subsets evaluated (i.e. not pruned).
+   * 
+   * @return Number of subsets
+   */
+  public int getEvaluated() {
+    return evaluated;
+  }
+}
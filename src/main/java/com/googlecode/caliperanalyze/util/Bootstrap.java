@@ -0,0 +1,216 @@
+package com.googlecode.caliperanalyze.util;
+
+import java.util.Arrays;
+
+/**
+ * Percentile bootstrap confidence intervals, for weighted means and for the
+ * coefficients of linear least squares fits.
+ * 
+ * The observations are resampled with replacement into a primitive index
+ * buffer, and the statistic is recomputed on each resample. All buffers are
+ * allocated once and reused for further intervals of at most the same size,
+ * so an instance should be used by a single thread, with its own random
+ * generator (see {@link SplitMix64#split()}).
+ * 
+ * Reference:
+ * <p>
+ * B. Efron and R. J. Tibshirani<br />
+ * An Introduction to the Bootstrap<br />
+ * Chapman &amp; Hall, 1993
+ * </p>
+ * 
+ * @author Erich Schubert
+ */
+public class Bootstrap {
+  /** Default number of resamples. */
+  public static final int DEFAULT_RESAMPLES = 10000;
+
+  /** Default confidence level. */
+  public static final double DEFAULT_LEVEL = .95;
+
+  /** Number of resamples */
+  private final int resamples;
+
+  /** Confidence level */
+  private final double level;
+
+  /** Index buffer of a resample */
+  private int[] idx = new int[0];
+
+  /** Statistics of all resamples, resample-major */
+  private double[] stats = new double[0];
+
+  /** Statistics of a single kind, for sorting */
+  private double[] scratch = new double[0];
+
+  /** Coefficients of one resample */
+  private double[] coef = new double[0];
+
+  /** Flag, if the regularization of {@link #fit} is relative */
+  private boolean relative;
+
+  /** Normal equations, of the last dimensionality */
+  private NormalEquations eq;
+
+  /** Factorization workspace */
+  private LeastSquaresFit fit;
+
+  /**
+   * Constructor.
+   * 
+   * @param resamples Number of resamples
+   * @param level Confidence level, e.g. 0.95
+   */
+  public Bootstrap(int resamples, double level) {
+    super();
+    this.resamples = resamples;
+    this.level = level;
+  }
+
+  /**
+   * Draw a resample of n observations into the index buffer.
+   * 
+   * @param random Random generator
+   * @param n Number of observations
+   */
+  private void resample(SplitMix64 random, int n) {
+    for (int i = 0; i < n; i++) {
+      idx[i] = random.nextInt(n);
+    }
+  }
+
+  /**
+   * Confidence interval of a weighted mean.
+   * 
+   * @param values Values
+   * @param weights Weights
+   * @param n Number of values
+   * @param random Random generator
+   * @param out Output array for the lower and upper bound
+   */
+  public void meanInterval(double[] values, double[] weights, int n, SplitMix64 random, double[] out) {
+    if (n == 0) {
+      out[0] = out[1] = Double.NaN;
+      return;
+    }
+    ensureCapacity(n, 1);
+    for (int b = 0; b < resamples; b++) {
+      resample(random, n);
+      double sum = 0, wsum = 0;
+      for (int i = 0; i < n; i++) {
+        final int j = idx[i];
+        sum += values[j] * weights[j];
+        wsum += weights[j];
+      }
+      stats[b] = sum / wsum;
+    }
+    percentiles(stats, 0, 1, out, 0, out, 1);
+  }
+
+  /**
+   * Confidence intervals of the coefficients of a (regularized) linear least
+   * squares fit, by resampling the observations (pairs bootstrap).
+   * 
+   * @param x Design matrix, row-major with {@code dim} columns
+   * @param y Observed values
+   * @param w Observation weights, zero weights are ignored
+   * @param n Number of observations
+   * @param dim Number of columns
+   * @param lambda Regularization parameter lambda
+   * @param relative Regularization relative to the squared column norms
+   * @param random Random generator
+   * @param lower Output array for the lower bounds
+   * @param upper Output array for the upper bounds
+   */
+  public void coefficientIntervals(double[] x, double[] y, double[] w, int n, int dim, double lambda, boolean relative, SplitMix64 random, double[] lower, double[] upper) {
+    if (n == 0 || dim == 0) {
+      Arrays.fill(lower, 0, dim, Double.NaN);
+      Arrays.fill(upper, 0, dim, Double.NaN);
+      return;
+    }
+    ensureCapacity(n, dim);
+    if (eq == null || eq.getDimensionality() != dim || this.relative != relative) {
+      eq = new NormalEquations(dim);
+      fit = new LeastSquaresFit(dim, relative);
+      this.relative = relative;
+    }
+    int[] cols = new int[dim];
+    for (int j = 0; j < dim; j++) {
+      cols[j] = j;
+    }
+    for (int b = 0; b < resamples; b++) {
+      resample(random, n);
+      eq.clear();
+      for (int i = 0; i < n; i++) {
+        final int j = idx[i];
+        if (w[j] > 0) {
+          eq.add(x, j * dim, y[j], w[j]);
+        }
+      }
+      fit.factor(eq, cols, lambda);
+      fit.solve(coef);
+      System.arraycopy(coef, 0, stats, b * dim, dim);
+    }
+    for (int j = 0; j < dim; j++) {
+      percentiles(stats, j, dim, lower, j, upper, j);
+    }
+  }
+
+  /**
+   * Compute the percentiles of one statistic of all resamples.
+   * 
+   * @param data Statistics, resample-major
+   * @param offset Offset of the statistic
+   * @param stride Number of statistics per resample
+   * @param lower Output array of the lower bound
+   * @param lpos Output position of the lower bound
+   * @param upper Output array of the upper bound
+   * @param upos Output position of the upper bound
+   */
+  private void percentiles(double[] data, int offset, int stride, double[] lower, int lpos, double[] upper, int upos) {
+    if (stride > 1) {
+      for (int b = 0; b < resamples; b++) {
+        scratch[b] = data[b * stride + offset];
+      }
+      data = scratch;
+    }
+    Arrays.sort(data, 0, resamples);
+    final double alpha = (1 - level) * .5;
+    lower[lpos] = quantile(data, alpha);
+    upper[upos] = quantile(data, 1 - alpha);
+  }
+
+  /**
+   * Linearly interpolated quantile of sorted data.
+   * 
+   * @param sorted Sorted data, of length at least {@link #resamples}
+   * @param q Quantile
+   * @return Value
+   */
+  private double quantile(double[] sorted, double q) {
+    final double pos = q * (resamples - 1);
+    final int i = (int) pos;
+    return i + 1 < resamples ? sorted[i] + (sorted[i + 1] - sorted[i]) * (pos - i) : sorted[i];
+  }
+
+  /**
+   * Make sure the buffers are large enough.
+   * 
+   * @param n Number of observations
+   * @param dim Number of statistics
+   */
+  private void ensureCapacity(int n, int dim) {
+    if (idx.length < n) {
+      idx = new int[n];
+    }
+    if (stats.length < resamples * dim) {
+      stats = new double[resamples * dim];
+    }
+    if (scratch.length < resamples) {
+      scratch = new double[resamples];
+    }
+    if (coef.length < dim) {
+      coef = new double[dim];
+    }
+  }
+}
@@ -1,38 +1,74 @@
 package com.googlecode.caliperanalyze.util;
 
 import java.io.File;
-
-import com.google.caliper.options.CaliperOptions;
-import com.google.caliper.options.OptionsModule;
-import com.google.inject.Guice;
-import com.google.inject.Injector;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
 
 /**
- * Class that partially instantiates Google Caliper, in order to detect the
- * folder that it stores its data in.
+ * Class that reads the Caliper configuration, in order to detect the folder
+ * that it stores its data in.
  * 
- * However, this is only partially implemented as of now. The -c
+ * This mimics the defaults of Caliper and its result file writer: the results
+ * are in {@code ~/.caliper/results}, unless the configuration file (by default
+ * {@code ~/.caliper/config.properties}, or given with {@code -c}) sets
+ * {@code results.file.options.dir} or {@code results.file.options.file}.
+ * Caliper itself is not instantiated, as setting up its Guice modules takes
+ * much longer than reading a small result file.
  * 
  * @author Erich Schubert
  */
 public class CaliperConfigurationAdapter {
+  /** Caliper directory, in the user home */
+  private static final String CALIPER_DIR = ".caliper";
+
+  /** Default configuration file, in the Caliper directory */
+  private static final String CONFIG_FILE = "config.properties";
+
+  /** Default result directory, in the Caliper directory */
+  private static final String RESULTS_DIR = "results";
+
+  /** Configuration key of the result directory */
+  private static final String RESULTS_DIR_KEY = "results.file.options.dir";
+
+  /** Configuration key of a fixed result file */
+  private static final String RESULTS_FILE_KEY = "results.file.options.file";
+
+  /** Result directory */
   private File resultdir;
 
-  public CaliperConfigurationAdapter(String configdir) {
-    // Setup fake parameters for caliper:
-    String[] params;
-    if(configdir == null) {
-      params = new String[] { "" };
+  /** Fixed result file, may be {@code null} */
+  private File resultfile;
+
+  /**
+   * Constructor.
+   * 
+   * @param configfile Caliper configuration file, {@code null} for the default
+   */
+  public CaliperConfigurationAdapter(String configfile) {
+    File caliperdir = new File(System.getProperty("user.home"), CALIPER_DIR);
+    File config = configfile != null ? new File(configfile) : new File(caliperdir, CONFIG_FILE);
+    Properties props = new Properties();
+    if(config.isFile()) {
+      try (InputStream in = new FileInputStream(config)) {
+        props.load(in);
+      }
+      catch(IOException e) {
+        throw new RuntimeException("Cannot read Caliper configuration file: " + config, e);
+      }
+    }
+    else if(configfile != null) {
+      throw new IllegalArgumentException("Caliper configuration file not found: " + config);
+    }
+    String file = props.getProperty(RESULTS_FILE_KEY), dir = props.getProperty(RESULTS_DIR_KEY);
+    if(file != null && !file.isEmpty()) {
+      resultfile = new File(file);
+      resultdir = resultfile.getAbsoluteFile().getParentFile();
     }
     else {
-      params = new String[] { "-c", configdir, "" };
+      resultdir = dir != null && !dir.isEmpty() ? new File(dir) : new File(caliperdir, RESULTS_DIR);
     }
-    // Hack to access caliper options.
-    Injector optionsInjector = Guice.createInjector(new OptionsModule(params));
-    CaliperOptions options = optionsInjector.getInstance(CaliperOptions.class);
-
-    // I couldn't find a way to get the caliper output directory.
-    resultdir = new File(options.caliperDirectory(), "results");
   }
 
   /**
@@ -43,4 +79,14 @@ public class CaliperConfigurationAdapter {
   public File getCaliperResultDir() {
     return resultdir;
   }
+
+  /**
+   * Get the fixed result file, if configured.
+   * 
+   * @return Caliper result file, or {@code null} if Caliper creates a new file
+   *         in the result directory for each run.
+   */
+  public File getCaliperResultFile() {
+    return resultfile;
+  }
 }
@@ -0,0 +1,587 @@
+package com.googlecode.caliperanalyze.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.joda.time.Instant;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.google.caliper.model.BenchmarkSpec;
+import com.google.caliper.model.Host;
+import com.google.caliper.model.InstrumentSpec;
+import com.google.caliper.model.Measurement;
+import com.google.caliper.model.Run;
+import com.google.caliper.model.Scenario;
+import com.google.caliper.model.Trial;
+import com.google.caliper.model.Value;
+import com.google.caliper.model.VmSpec;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Hand-written Gson type adapters for the Caliper result model.
+ * 
+ * Caliper configures its Gson instance with a Guice module, and Gson then
+ * inspects the model classes by reflection. Both take much longer than
+ * reading a small result file. These adapters read the JSON stream directly
+ * into the builders of the model classes, and skip unknown fields.
+ * 
+ * The builders do not allow missing fields, so incomplete objects are read as
+ * {@code null}; an incomplete trial is therefore skipped as a whole.
+ * 
+ * @author Erich Schubert
+ */
+public final class CaliperTypeAdapters {
+  /**
+   * Fake constructor: do not instantiate.
+   */
+  private CaliperTypeAdapters() {
+    // Do not instantiate
+  }
+
+  /**
+   * Create a Gson instance for the Caliper result model.
+   * 
+   * @return Gson instance
+   */
+  public static Gson createGson() {
+    GsonBuilder builder = new GsonBuilder();
+    builder.registerTypeAdapter(Trial.class, TRIAL);
+    builder.registerTypeAdapter(Run.class, RUN);
+    builder.registerTypeAdapter(InstrumentSpec.class, INSTRUMENT_SPEC);
+    builder.registerTypeAdapter(Scenario.class, SCENARIO);
+    builder.registerTypeAdapter(Host.class, HOST);
+    builder.registerTypeAdapter(VmSpec.class, VM_SPEC);
+    builder.registerTypeAdapter(BenchmarkSpec.class, BENCHMARK_SPEC);
+    builder.registerTypeAdapter(Measurement.class, MEASUREMENT);
+    builder.registerTypeAdapter(Value.class, VALUE);
+    return builder.create();
+  }
+
+  /**
+   * Adapter for {@link Value}.
+   */
+  public static final TypeAdapter<Value> VALUE = new TypeAdapter<Value>() {
+    @Override
+    public Value read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      double magnitude = Double.NaN;
+      String unit = null;
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("magnitude".equals(name)) {
+          magnitude = in.nextDouble();
+        }
+        else if("unit".equals(name)) {
+          unit = nextString(in);
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return unit != null ? Value.create(magnitude, unit) : null;
+    }
+
+    @Override
+    public void write(JsonWriter out, Value value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("magnitude").value(value.magnitude());
+      out.name("unit").value(value.unit());
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for {@link Measurement}.
+   */
+  public static final TypeAdapter<Measurement> MEASUREMENT = new TypeAdapter<Measurement>() {
+    @Override
+    public Measurement read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      Value value = null;
+      double weight = Double.NaN;
+      String description = null;
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("value".equals(name)) {
+          value = VALUE.read(in);
+        }
+        else if("weight".equals(name)) {
+          weight = in.nextDouble();
+        }
+        else if("description".equals(name)) {
+          description = nextString(in);
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      if(value == null || weight != weight || description == null) {
+        return null;
+      }
+      return new Measurement.Builder().value(value).weight(weight).description(description).build();
+    }
+
+    @Override
+    public void write(JsonWriter out, Measurement value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("value");
+      VALUE.write(out, value.value());
+      out.name("weight").value(value.weight());
+      out.name("description").value(value.description());
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for {@link BenchmarkSpec}.
+   */
+  public static final TypeAdapter<BenchmarkSpec> BENCHMARK_SPEC = new TypeAdapter<BenchmarkSpec>() {
+    @Override
+    public BenchmarkSpec read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      String className = null, methodName = null;
+      Map<String, String> parameters = null;
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("className".equals(name)) {
+          className = nextString(in);
+        }
+        else if("methodName".equals(name)) {
+          methodName = nextString(in);
+        }
+        else if("parameters".equals(name)) {
+          parameters = readMap(in);
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      if(className == null || methodName == null) {
+        return null;
+      }
+      BenchmarkSpec.Builder builder = new BenchmarkSpec.Builder().className(className).methodName(methodName);
+      if(parameters != null) {
+        builder.addAllParameters(parameters);
+      }
+      return builder.build();
+    }
+
+    @Override
+    public void write(JsonWriter out, BenchmarkSpec value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("className").value(value.className());
+      out.name("methodName").value(value.methodName());
+      out.name("parameters");
+      writeMap(out, value.parameters());
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for {@link Host}.
+   */
+  public static final TypeAdapter<Host> HOST = new TypeAdapter<Host>() {
+    @Override
+    public Host read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      Host.Builder builder = new Host.Builder();
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("properties".equals(name)) {
+          builder.addAllProperies(readMap(in));
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return builder.build();
+    }
+
+    @Override
+    public void write(JsonWriter out, Host value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("properties");
+      writeMap(out, value.properties());
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for {@link VmSpec}.
+   */
+  public static final TypeAdapter<VmSpec> VM_SPEC = new TypeAdapter<VmSpec>() {
+    @Override
+    public VmSpec read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      VmSpec.Builder builder = new VmSpec.Builder();
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("properties".equals(name)) {
+          builder.addAllProperties(readMap(in));
+        }
+        else if("options".equals(name)) {
+          builder.addAllOptions(readMap(in));
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return builder.build();
+    }
+
+    @Override
+    public void write(JsonWriter out, VmSpec value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("properties");
+      writeMap(out, value.properties());
+      out.name("options");
+      writeMap(out, value.options());
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for {@link Scenario}.
+   */
+  public static final TypeAdapter<Scenario> SCENARIO = new TypeAdapter<Scenario>() {
+    @Override
+    public Scenario read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      Host host = null;
+      VmSpec vmSpec = null;
+      BenchmarkSpec benchmarkSpec = null;
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("host".equals(name)) {
+          host = HOST.read(in);
+        }
+        else if("vmSpec".equals(name)) {
+          vmSpec = VM_SPEC.read(in);
+        }
+        else if("benchmarkSpec".equals(name)) {
+          benchmarkSpec = BENCHMARK_SPEC.read(in);
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      if(host == null || vmSpec == null || benchmarkSpec == null) {
+        return null;
+      }
+      return new Scenario.Builder().host(host).vmSpec(vmSpec).benchmarkSpec(benchmarkSpec).build();
+    }
+
+    @Override
+    public void write(JsonWriter out, Scenario value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("host");
+      HOST.write(out, value.host());
+      out.name("vmSpec");
+      VM_SPEC.write(out, value.vmSpec());
+      out.name("benchmarkSpec");
+      BENCHMARK_SPEC.write(out, value.benchmarkSpec());
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for {@link InstrumentSpec}.
+   */
+  public static final TypeAdapter<InstrumentSpec> INSTRUMENT_SPEC = new TypeAdapter<InstrumentSpec>() {
+    @Override
+    public InstrumentSpec read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      String className = null;
+      Map<String, String> options = null;
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("className".equals(name)) {
+          className = nextString(in);
+        }
+        else if("options".equals(name)) {
+          options = readMap(in);
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      if(className == null) {
+        return null;
+      }
+      InstrumentSpec.Builder builder = new InstrumentSpec.Builder().className(className);
+      if(options != null) {
+        builder.addAllOptions(options);
+      }
+      return builder.build();
+    }
+
+    @Override
+    public void write(JsonWriter out, InstrumentSpec value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("className").value(value.className());
+      out.name("options");
+      writeMap(out, value.options());
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for {@link Run}.
+   */
+  public static final TypeAdapter<Run> RUN = new TypeAdapter<Run>() {
+    @Override
+    public Run read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      String id = null, label = null, startTime = null;
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("id".equals(name)) {
+          id = nextString(in);
+        }
+        else if("label".equals(name)) {
+          label = nextString(in);
+        }
+        else if("startTime".equals(name)) {
+          startTime = nextString(in);
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      if(id == null || label == null || startTime == null) {
+        return null;
+      }
+      return new Run.Builder(UUID.fromString(id)).label(label).startTime(parseInstant(startTime)).build();
+    }
+
+    @Override
+    public void write(JsonWriter out, Run value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("id").value(value.id().toString());
+      out.name("label").value(value.label());
+      out.name("startTime").value(ISODateTimeFormat.dateTime().print(value.startTime()));
+      out.endObject();
+    }
+  };
+
+  /**
+   * Adapter for {@link Trial}.
+   */
+  public static final TypeAdapter<Trial> TRIAL = new TypeAdapter<Trial>() {
+    @Override
+    public Trial read(JsonReader in) throws IOException {
+      if(skipNull(in)) {
+        return null;
+      }
+      String id = null;
+      Run run = null;
+      InstrumentSpec instrumentSpec = null;
+      Scenario scenario = null;
+      List<Measurement> measurements = new ArrayList<>();
+      in.beginObject();
+      while(in.hasNext()) {
+        String name = in.nextName();
+        if("id".equals(name)) {
+          id = nextString(in);
+        }
+        else if("run".equals(name)) {
+          run = RUN.read(in);
+        }
+        else if("instrumentSpec".equals(name)) {
+          instrumentSpec = INSTRUMENT_SPEC.read(in);
+        }
+        else if("scenario".equals(name)) {
+          scenario = SCENARIO.read(in);
+        }
+        else if("measurements".equals(name) && !skipNull(in)) {
+          in.beginArray();
+          while(in.hasNext()) {
+            Measurement m = MEASUREMENT.read(in);
+            if(m != null) {
+              measurements.add(m);
+            }
+          }
+          in.endArray();
+        }
+        else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      if(id == null || run == null || instrumentSpec == null || scenario == null) {
+        return null;
+      }
+      return new Trial.Builder(UUID.fromString(id)).run(run).instrumentSpec(instrumentSpec).scenario(scenario).addAllMeasurements(measurements).build();
+    }
+
+    @Override
+    public void write(JsonWriter out, Trial value) throws IOException {
+      if(value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("id").value(value.id().toString());
+      out.name("run");
+      RUN.write(out, value.run());
+      out.name("instrumentSpec");
+      INSTRUMENT_SPEC.write(out, value.instrumentSpec());
+      out.name("scenario");
+      SCENARIO.write(out, value.scenario());
+      out.name("measurements").beginArray();
+      for(Measurement m : value.measurements()) {
+        MEASUREMENT.write(out, m);
+      }
+      out.endArray();
+      out.endObject();
+    }
+  };
+
+  /**
+   * Skip a JSON null.
+   * 
+   * @param in JSON reader
+   * @return {@code true} if a null was skipped
+   * @throws IOException On read errors
+   */
+  public static boolean skipNull(JsonReader in) throws IOException {
+    if(in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Read a string, which may be null.
+   * 
+   * @param in JSON reader
+   * @return String, or {@code null}
+   * @throws IOException On read errors
+   */
+  static String nextString(JsonReader in) throws IOException {
+    return skipNull(in) ? null : in.nextString();
+  }
+
+  /**
+   * Read a map of strings, such as the parameters of a benchmark.
+   * 
+   * @param in JSON reader
+   * @return Sorted map, empty for a JSON null
+   * @throws IOException On read errors
+   */
+  static Map<String, String> readMap(JsonReader in) throws IOException {
+    Map<String, String> map = new TreeMap<>();
+    if(skipNull(in)) {
+      return map;
+    }
+    in.beginObject();
+    while(in.hasNext()) {
+      String key = in.nextName();
+      String value = nextString(in);
+      if(value != null) {
+        map.put(key, value);
+      }
+    }
+    in.endObject();
+    return map;
+  }
+
+  /**
+   * Write a map of strings.
+   * 
+   * @param out JSON writer
+   * @param map Map to write
+   * @throws IOException On write errors
+   */
+  static void writeMap(JsonWriter out, Map<String, String> map) throws IOException {
+    out.beginObject();
+    for(Map.Entry<String, String> e : map.entrySet()) {
+      out.name(e.getKey()).value(e.getValue());
+    }
+    out.endObject();
+  }
+
+  /**
+   * Parse a time stamp, in the ISO format written by Caliper.
+   * 
+   * @param str Time stamp
+   * @return Instant
+   */
+  static Instant parseInstant(String str) {
+    return ISODateTimeFormat.dateTime().parseDateTime(str).toInstant();
+  }
+}
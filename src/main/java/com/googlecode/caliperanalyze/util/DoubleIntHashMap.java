@@ -0,0 +1,123 @@
+package com.googlecode.caliperanalyze.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from double keys to non-negative int values, using open addressing
+ * with linear probing on primitive arrays, so that no boxing is necessary.
+ * 
+ * Keys are compared by value as with {@code ==}, i.e. {@code -0.0} and
+ * {@code 0.0} are the same key. NaN keys are not supported.
+ * 
+ * @author Erich Schubert
+ */
+public class DoubleIntHashMap {
+  /** Keys */
+  private double[] keys;
+
+  /** Values, -1 for empty slots */
+  private int[] values;
+
+  /** Number of entries */
+  private int size = 0;
+
+  /**
+   * Constructor.
+   */
+  public DoubleIntHashMap() {
+    super();
+    keys = new double[16];
+    values = new int[16];
+    Arrays.fill(values, -1);
+  }
+
+  /**
+   * Get the value of a key.
+   * 
+   * @param key Key
+   * @return Value, or -1 if the key is not in the map.
+   */
+  public int get(double key) {
+    final int mask = keys.length - 1;
+    for(int i = slot(key, mask);; i = (i + 1) & mask) {
+      if(values[i] < 0 || keys[i] == key) {
+        return values[i];
+      }
+    }
+  }
+
+  /**
+   * Set the value of a key.
+   * 
+   * @param key Key, not NaN
+   * @param value Value, non-negative
+   */
+  public void put(double key, int value) {
+    if((size + 1) << 1 > keys.length) {
+      grow();
+    }
+    final int mask = keys.length - 1;
+    for(int i = slot(key, mask);; i = (i + 1) & mask) {
+      if(values[i] < 0) {
+        keys[i] = key;
+        values[i] = value;
+        ++size;
+        return;
+      }
+      if(keys[i] == key) {
+        values[i] = value;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get the number of entries.
+   * 
+   * @return Size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Double the capacity, and rehash all entries.
+   */
+  private void grow() {
+    final double[] oldkeys = keys;
+    final int[] oldvalues = values;
+    keys = new double[oldkeys.length << 1];
+    values = new int[oldvalues.length << 1];
+    Arrays.fill(values, -1);
+    final int mask = keys.length - 1;
+    for(int j = 0; j < oldkeys.length; j++) {
+      if(oldvalues[j] >= 0) {
+        int i = slot(oldkeys[j], mask);
+        while(values[i] >= 0) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldkeys[j];
+        values[i] = oldvalues[j];
+      }
+    }
+  }
+
+  /**
+   * Compute the initial slot of a key.
+   * 
+   * @param key Key
+   * @param mask Table size - 1
+   * @return Slot
+   */
+  private static int slot(double key, int mask) {
+    // Adding 0.0 turns -0.0 into 0.0.
+    long h = Double.doubleToLongBits(key + 0.0);
+    // Finalizer of MurmurHash3, as sizes are often powers of two:
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h & mask;
+  }
+}
@@ -9,11 +9,262 @@ import org.ejml.ops.CommonOps;
  * 
  * Not an iterative optimization algorithm, but the direct computation.
  * 
+ * An instance of this class is a reusable workspace for repeatedly fitting the
+ * same normal equations with fewer and fewer columns (backward elimination):
+ * the regularized normal equations are factored once with a Cholesky
+ * decomposition, and removing a column updates the factor with Givens
+ * rotations. Columns can also be added incrementally (e.g. for active set
+ * methods). No inverse is computed, and no memory is allocated after
+ * construction.
+ * 
+ * The regularization can also be relative to the squared norm of each column
+ * (X' * X + lambda * diag(X' * X)), which is ridge regression on standardized
+ * columns, and does not depend on the scale of the columns.
+ * 
  * Not thoroughly tested, use at your own risk.
  * 
  * @author Erich Schubert
  */
 public class LeastSquaresFit {
+  /** Maximum number of columns */
+  private final int capacity;
+
+  /** Upper triangular Cholesky factor, row-major with stride capacity */
+  private final double[] r;
+
+  /** Right hand side X' * t of the current columns */
+  private final double[] rhs;
+
+  /** Current columns */
+  private final int[] cols;
+
+  /** Number of current columns */
+  private int size = 0;
+
+  /** Regularization parameter */
+  private double lambda = 0;
+
+  /** Regularization relative to the column norms */
+  private final boolean relative;
+
+  /**
+   * Constructor.
+   * 
+   * @param capacity Maximum number of columns
+   */
+  public LeastSquaresFit(int capacity) {
+    this(capacity, false);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param capacity Maximum number of columns
+   * @param relative Regularization relative to the squared column norms
+   */
+  public LeastSquaresFit(int capacity, boolean relative) {
+    super();
+    this.capacity = capacity;
+    this.relative = relative;
+    this.r = new double[capacity * capacity];
+    this.rhs = new double[capacity];
+    this.cols = new int[capacity];
+  }
+
+  /**
+   * Factor the regularized normal equations (X' * X + lambda * I) of some
+   * columns.
+   * 
+   * If the matrix is not numerically positive definite, a tiny multiple of
+   * its largest diagonal element is added to the diagonal.
+   * 
+   * @param eq Normal equations
+   * @param columns Columns to use, at most capacity.
+   * @param lambda Regularization parameter lambda.
+   */
+  public void factor(NormalEquations eq, int[] columns, double lambda) {
+    final int n = columns.length;
+    if (n > capacity) {
+      throw new IllegalArgumentException("Too many columns.");
+    }
+    System.arraycopy(columns, 0, cols, 0, n);
+    size = n;
+    this.lambda = lambda;
+    double maxdiag = 0;
+    for (int i = 0; i < n; i++) {
+      rhs[i] = eq.getXty(cols[i]);
+      maxdiag = Math.max(maxdiag, eq.getXtX(cols[i], cols[i]));
+    }
+    for (double jitter = 0;; jitter = jitter > 0 ? jitter * 100 : 1e-14 * maxdiag) {
+      for (int i = 0, off = 0; i < n; i++, off += capacity) {
+        for (int j = i; j < n; j++) {
+          r[off + j] = eq.getXtX(cols[i], cols[j]);
+        }
+        r[off + i] += (relative ? lambda * r[off + i] : lambda) + jitter;
+      }
+      if (cholesky(r, capacity, n) || !(jitter < maxdiag)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Start with an empty set of columns.
+   * 
+   * @param lambda Regularization parameter lambda.
+   */
+  public void reset(double lambda) {
+    this.size = 0;
+    this.lambda = lambda;
+  }
+
+  /**
+   * Copy the factorization of another workspace.
+   * 
+   * @param other Other workspace, with at most the same capacity, and the
+   *        same kind of regularization.
+   */
+  public void copyFrom(LeastSquaresFit other) {
+    final int n = other.size;
+    if (n > capacity) {
+      throw new IllegalArgumentException("Too many columns.");
+    }
+    for (int i = 0; i < n; i++) {
+      System.arraycopy(other.r, i * other.capacity + i, r, i * capacity + i, n - i);
+    }
+    System.arraycopy(other.rhs, 0, rhs, 0, n);
+    System.arraycopy(other.cols, 0, cols, 0, n);
+    size = n;
+    lambda = other.lambda;
+  }
+
+  /**
+   * Add a column, extending the factorization by one row and column.
+   * 
+   * @param eq Normal equations
+   * @param col Column number in the normal equations
+   * @return {@code false} if the column is (numerically) linearly dependent on
+   *         the current columns, and was not added.
+   */
+  public boolean addColumn(NormalEquations eq, int col) {
+    final int k = size;
+    if (k == capacity) {
+      throw new IllegalArgumentException("Too many columns.");
+    }
+    // Solve R' * v = (X' * X)[cols, col] for the new column v of R:
+    double sqsum = 0;
+    for (int i = 0, oi = 0; i < k; i++, oi += capacity) {
+      double sum = eq.getXtX(cols[i], col);
+      for (int m = 0, om = 0; m < i; m++, om += capacity) {
+        sum -= r[om + i] * r[om + k];
+      }
+      final double v = sum / r[oi + i];
+      r[oi + k] = v;
+      sqsum += v * v;
+    }
+    final double norm = eq.getXtX(col, col);
+    final double diag = norm + (relative ? lambda * norm : lambda);
+    final double d = diag - sqsum;
+    if (!(d > 1e-12 * diag)) {
+      return false;
+    }
+    r[k * capacity + k] = Math.sqrt(d);
+    rhs[k] = eq.getXty(col);
+    cols[k] = col;
+    size = k + 1;
+    return true;
+  }
+
+  /**
+   * Remove a column, updating the factorization.
+   * 
+   * Deleting a column of R leaves an upper Hessenberg matrix, which is made
+   * triangular again with Givens rotations of the following rows.
+   * 
+   * @param k Position of the column in the current columns
+   */
+  public void removeColumn(int k) {
+    final int n = size;
+    // Shift columns left:
+    for (int i = 0, off = 0; i < n; i++, off += capacity) {
+      for (int j = Math.max(k, i - 1); j < n - 1; j++) {
+        r[off + j] = r[off + j + 1];
+      }
+    }
+    // Eliminate the subdiagonal:
+    for (int j = k; j < n - 1; j++) {
+      final int o1 = j * capacity, o2 = o1 + capacity;
+      final double a = r[o1 + j], b = r[o2 + j];
+      final double h = Math.hypot(a, b);
+      if (h == 0) {
+        continue;
+      }
+      final double c = a / h, s = b / h;
+      r[o1 + j] = h;
+      r[o2 + j] = 0;
+      for (int m = j + 1; m < n - 1; m++) {
+        final double t1 = r[o1 + m], t2 = r[o2 + m];
+        r[o1 + m] = c * t1 + s * t2;
+        r[o2 + m] = c * t2 - s * t1;
+      }
+    }
+    System.arraycopy(rhs, k + 1, rhs, k, n - k - 1);
+    System.arraycopy(cols, k + 1, cols, k, n - k - 1);
+    size = n - 1;
+  }
+
+  /**
+   * Solve for the current columns.
+   * 
+   * @param out Output array for the coefficients, of at least {@link #size}
+   *        length.
+   */
+  public void solve(double[] out) {
+    System.arraycopy(rhs, 0, out, 0, size);
+    solveCholesky(r, capacity, size, out);
+  }
+
+  /**
+   * Compute the quadratic form x' * A^-1 * x with the regularized normal
+   * equations A of the current columns, e.g. the leverage of a new point x for
+   * the variance of a prediction. Only a forward substitution is needed.
+   * 
+   * @param x Vector, in the order of the current columns. Will be overwritten.
+   * @return Quadratic form
+   */
+  public double inverseQuadraticForm(double[] x) {
+    // With R' * z = x, the quadratic form is z' * z.
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      double v = x[i];
+      for (int k = 0; k < i; k++) {
+        v -= r[k * capacity + i] * x[k];
+      }
+      x[i] = v /= r[i * capacity + i];
+      sum += v * v;
+    }
+    return sum;
+  }
+
+  /**
+   * Get the number of current columns.
+   * 
+   * @return Number of columns
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get a current column.
+   * 
+   * @param i Position
+   * @return Column number in the normal equations
+   */
+  public int getColumn(int i) {
+    return cols[i];
+  }
+
   /**
    * Thikonov regularized linear least squares, aka ridge regression.
    * 
@@ -30,6 +281,22 @@ public class LeastSquaresFit {
     DenseMatrix64F omat = new DenseMatrix64F(dof, dof);
     // X' * X
     CommonOps.multTransA(mat, mat, omat);
+    DenseMatrix64F xty = new DenseMatrix64F(dof, 1);
+    CommonOps.multTransA(mat, vec, xty);
+    return tikhonovNormalEquations(omat, xty, lambda);
+  }
+
+  /**
+   * Thikonov regularized linear least squares, given the normal equations.
+   * 
+   * @param xtx Matrix X' * X, will be modified.
+   * @param xty Vector X' * t
+   * @param lambda Regularization parameter lambda.
+   * @return Least squares fit
+   */
+  public static DenseMatrix64F tikhonovNormalEquations(DenseMatrix64F xtx, DenseMatrix64F xty, double lambda) {
+    final int dof = xtx.numCols;
+    DenseMatrix64F omat = xtx;
     // + lambda * I
     // DenseMatrix64F l = CommonOps.identity(dof);
     // CommonOps.scale(lambda, l);
@@ -37,13 +304,70 @@ public class LeastSquaresFit {
     for (int i = 0; i < dof; i++) {
       omat.add(i, i, lambda);
     }
-    // Invert.
-    CommonOps.invert(omat);
-    // * X'
-    DenseMatrix64F omat2 = new DenseMatrix64F(dof, vec.numRows);
-    CommonOps.multTransB(omat, mat, omat2);
-    DenseMatrix64F res = new DenseMatrix64F(dof, 1);
-    CommonOps.mult(omat2, vec, res);
+    // Solve with a Cholesky decomposition, instead of inverting.
+    // The decomposition works on a copy, as it partially overwrites the matrix
+    // before detecting that it is not positive definite.
+    DenseMatrix64F res = xty.copy(), r = omat.copy();
+    if (cholesky(r.data, dof, dof)) {
+      solveCholesky(r.data, dof, dof, res.data);
+    } else {
+      CommonOps.solve(omat, xty, res);
+    }
     return res;
   }
+
+  /**
+   * In-place Cholesky decomposition A = R' * R, using the upper triangle only.
+   * 
+   * @param a Matrix, row-major, replaced by R in the upper triangle.
+   * @param stride Row stride
+   * @param n Size
+   * @return {@code false} if the matrix is not positive definite.
+   */
+  private static boolean cholesky(double[] a, int stride, int n) {
+    for (int i = 0, oi = 0; i < n; i++, oi += stride) {
+      for (int j = i; j < n; j++) {
+        double sum = a[oi + j];
+        for (int k = 0, ok = 0; k < i; k++, ok += stride) {
+          sum -= a[ok + i] * a[ok + j];
+        }
+        if (i == j) {
+          if (!(sum > 0)) {
+            return false;
+          }
+          a[oi + i] = Math.sqrt(sum);
+        } else {
+          a[oi + j] = sum / a[oi + i];
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Solve R' * R * x = b, given the upper triangular R.
+   * 
+   * @param r Factor R, row-major
+   * @param stride Row stride
+   * @param n Size
+   * @param b Right hand side, replaced by the solution x.
+   */
+  private static void solveCholesky(double[] r, int stride, int n, double[] b) {
+    // Forward substitution, R' * z = b
+    for (int i = 0; i < n; i++) {
+      double sum = b[i];
+      for (int k = 0; k < i; k++) {
+        sum -= r[k * stride + i] * b[k];
+      }
+      b[i] = sum / r[i * stride + i];
+    }
+    // Back substitution, R * x = z
+    for (int i = n - 1; i >= 0; i--) {
+      double sum = b[i];
+      for (int k = i + 1; k < n; k++) {
+        sum -= r[i * stride + k] * b[k];
+      }
+      b[i] = sum / r[i * stride + i];
+    }
+  }
 }
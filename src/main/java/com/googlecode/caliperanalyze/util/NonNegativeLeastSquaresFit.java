@@ -1,15 +1,16 @@
 package com.googlecode.caliperanalyze.util;
 
+import java.util.Arrays;
+
 import org.ejml.data.DenseMatrix64F;
 import org.ejml.ops.CommonOps;
 
 /**
  * Non-negative least squares fitting.
  * 
- * Note: this implementation is not thoroughly tested. Some parameters such as
- * the iteration limit and the tolerance are chosen arbitrarily for a single use
- * case, and should probably either be estimated from the data or made a
- * parameter.
+ * Note: this implementation is not thoroughly tested. The static
+ * {@link #nnls} method uses a tolerance and iteration limit chosen arbitrarily
+ * for a single use case; use an instance to configure them.
  * 
  * But since this approach is not yet working as desired, why refine? Use at
  * your own risk.
@@ -48,9 +49,8 @@ public class NonNegativeLeastSquaresFit {
    * @return x
    */
   public static DenseMatrix64F nnls(DenseMatrix64F E, DenseMatrix64F f) {
-    // TODO: make tolerance parameterizable
-    final double tolerance = 0.01;
-    final int maxiter = 1000;
+    final double tolerance = DEFAULT_TOLERANCE;
+    final int maxiter = DEFAULT_MAXITER;
 
     final int dof = E.numCols;
     // Step 1: Initialize active/passive set P/Z:
@@ -187,6 +187,231 @@ public class NonNegativeLeastSquaresFit {
     return x; // Step 12.
   }
 
+  /**
+   * Default tolerance for the gradient, for a variable to become active.
+   */
+  public static final double DEFAULT_TOLERANCE = 0.01;
+
+  /**
+   * Default iteration limit.
+   */
+  public static final int DEFAULT_MAXITER = 1000;
+
+  /** Tolerance for the gradient */
+  private final double tolerance;
+
+  /** Iteration limit */
+  private final int maxiter;
+
+  /**
+   * Constructor, with default tolerance and iteration limit.
+   */
+  public NonNegativeLeastSquaresFit() {
+    this(DEFAULT_TOLERANCE, DEFAULT_MAXITER);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param tolerance Minimum gradient for a variable to become active.
+   * @param maxiter Maximum number of iterations.
+   */
+  public NonNegativeLeastSquaresFit(double tolerance, int maxiter) {
+    super();
+    this.tolerance = tolerance;
+    this.maxiter = maxiter;
+  }
+
+  /**
+   * Solve min ||E x - f|| for x >= 0, given the normal equations E' E and E' f
+   * of some columns.
+   * 
+   * Lawson and Hanson's active set method, but instead of solving the least
+   * squares problem of the active set from scratch in every iteration, a
+   * Cholesky factorization of the active part of E' E is updated: a new column
+   * when a variable becomes active, and Givens rotations when a variable
+   * becomes inactive (see {@link LeastSquaresFit}). Each iteration then costs
+   * only two triangular solves.
+   * 
+   * @param eq Normal equations
+   * @param cols Columns to use
+   * @return Result
+   */
+  public Result fit(NormalEquations eq, int[] cols) {
+    final int dof = cols.length;
+    LeastSquaresFit fact = new LeastSquaresFit(dof);
+    fact.reset(0.);
+    // Solution, indexed as cols:
+    double[] x = new double[dof];
+    // Active set solution, in the order of the factorization:
+    double[] z = new double[dof];
+    // Position of columns in the factorization, -1 if inactive:
+    int[] pos = new int[dof];
+    Arrays.fill(pos, -1);
+    // Variables that must not be activated, due to linear dependence:
+    boolean[] blocked = new boolean[dof];
+
+    int iter = 0;
+    boolean converged = false;
+    outer: while (true) {
+      // Step 2: Gradient w = E' f - E' E x, on the inactive set.
+      int t = -1;
+      double maxw = tolerance;
+      for (int i = 0; i < dof; i++) {
+        if (pos[i] >= 0 || blocked[i]) {
+          continue;
+        }
+        double wi = eq.getXty(cols[i]);
+        for (int j = 0; j < dof; j++) {
+          if (x[j] != 0) {
+            wi -= eq.getXtX(cols[i], cols[j]) * x[j];
+          }
+        }
+        // Step 3+4: Find maximum:
+        if (wi > maxw) {
+          t = i;
+          maxw = wi;
+        }
+      }
+      // Step 3: No positive value.
+      if (t < 0) {
+        converged = true;
+        break;
+      }
+      // Step 5+6: make active, by extending the factorization.
+      if (!fact.addColumn(eq, cols[t])) {
+        blocked[t] = true;
+        continue;
+      }
+      pos[t] = fact.size() - 1;
+      while (true) {
+        if (++iter > maxiter) {
+          break outer;
+        }
+        // Step 6: z is solution of reduced problem.
+        fact.solve(z);
+        if (t >= 0 && z[pos[t]] <= 0) {
+          // Rounding; the new variable would not move. Lawson and Hanson
+          // suggest to not consider it again.
+          removeActive(fact, pos, t);
+          blocked[t] = true;
+          t = -1;
+          continue;
+        }
+        t = -1;
+        // Step 7+8+9: Find any non-positive value; compute minimum alpha.
+        int mini = -1;
+        double alpha = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < dof; i++) {
+          if (pos[i] >= 0 && z[pos[i]] <= 0) {
+            final double alphai = x[i] / (x[i] - z[pos[i]]);
+            if (alphai < alpha) {
+              mini = i;
+              alpha = alphai;
+            }
+          }
+        }
+        // Step 7: Stop if nothing to deactivate.
+        if (mini < 0) {
+          break;
+        }
+        // Step 10+11: Update x, deactivate all zero variables.
+        for (int i = 0; i < dof; i++) {
+          if (pos[i] >= 0) {
+            x[i] += alpha * (z[pos[i]] - x[i]);
+          }
+        }
+        x[mini] = 0.;
+        for (int i = 0; i < dof; i++) {
+          if (pos[i] >= 0 && x[i] <= 0) {
+            x[i] = 0.;
+            removeActive(fact, pos, i);
+          }
+        }
+      }
+      // Step 7: x = z, in active dimensions.
+      for (int i = 0; i < dof; i++) {
+        x[i] = pos[i] >= 0 ? z[pos[i]] : 0.;
+      }
+    }
+    return new Result(x, iter, converged);
+  }
+
+  /**
+   * Deactivate a variable.
+   * 
+   * @param fact Factorization
+   * @param pos Positions in the factorization
+   * @param i Variable to deactivate
+   */
+  private static void removeActive(LeastSquaresFit fact, int[] pos, int i) {
+    final int p = pos[i];
+    fact.removeColumn(p);
+    pos[i] = -1;
+    for (int j = 0; j < pos.length; j++) {
+      if (pos[j] > p) {
+        --pos[j];
+      }
+    }
+  }
+
+  /**
+   * Result of a non-negative least squares fit.
+   * 
+   * @author Erich Schubert
+   */
+  public static class Result {
+    /** Solution */
+    final double[] x;
+
+    /** Number of iterations */
+    final int iterations;
+
+    /** Convergence flag */
+    final boolean converged;
+
+    /**
+     * Constructor.
+     * 
+     * @param x Solution
+     * @param iterations Number of iterations
+     * @param converged Convergence flag
+     */
+    Result(double[] x, int iterations, boolean converged) {
+      this.x = x;
+      this.iterations = iterations;
+      this.converged = converged;
+    }
+
+    /**
+     * Get the solution.
+     * 
+     * @return Coefficients, non-negative.
+     */
+    public double[] getSolution() {
+      return x;
+    }
+
+    /**
+     * Get the number of iterations.
+     * 
+     * @return Iterations
+     */
+    public int getIterations() {
+      return iterations;
+    }
+
+    /**
+     * Check whether the optimality conditions were met within the iteration
+     * limit. If not, the solution is the last feasible iterate.
+     * 
+     * @return {@code true} when converged
+     */
+    public boolean isConverged() {
+      return converged;
+    }
+  }
+
   /**
    * Swap to entries in an integer array.
    * 
@@ -0,0 +1,251 @@
+package com.googlecode.caliperanalyze.util;
+
+import java.util.Arrays;
+
+import org.ejml.data.DenseMatrix64F;
+
+/**
+ * Sufficient statistics of a (weighted) linear least squares problem: the
+ * normal equations X'X and X'y, and the residual sums y'y and sum of weights.
+ * 
+ * Observations are accumulated one row at a time, so memory is quadratic in
+ * the number of columns, but independent of the number of observations.
+ * Problems over any subset of the columns can then be solved without another
+ * pass over the data, and accumulators of partial data (e.g. of different
+ * threads or files) can be merged.
+ * 
+ * @author Erich Schubert
+ */
+public class NormalEquations {
+  /** Number of columns */
+  final int dim;
+
+  /** X'X, upper triangle in row-major order */
+  final double[] xtx;
+
+  /** X'y */
+  final double[] xty;
+
+  /** y'y */
+  double yty = 0;
+
+  /** Sum of weights */
+  double weight = 0;
+
+  /** Number of observations */
+  int count = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param dim Number of columns
+   */
+  public NormalEquations(int dim) {
+    super();
+    this.dim = dim;
+    this.xtx = new double[dim * dim];
+    this.xty = new double[dim];
+  }
+
+  /**
+   * Add an observation.
+   * 
+   * @param row Row of the design matrix X
+   * @param y Observed value
+   * @param w Weight
+   */
+  public void add(double[] row, double y, double w) {
+    add(row, 0, y, w);
+  }
+
+  /**
+   * Add an observation, from a larger array (e.g. a row-major matrix).
+   * 
+   * @param data Array containing the row of the design matrix X
+   * @param start Offset of the row in the array
+   * @param y Observed value
+   * @param w Weight
+   */
+  public void add(double[] data, int start, double y, double w) {
+    for(int i = 0, off = 0; i < dim; i++, off += dim) {
+      final double wi = w * data[start + i];
+      xty[i] += wi * y;
+      for(int j = i; j < dim; j++) {
+        xtx[off + j] += wi * data[start + j];
+      }
+    }
+    yty += w * y * y;
+    weight += w;
+    ++count;
+  }
+
+  /**
+   * Add a group of observations that share the same row, e.g. repeated
+   * measurements of the same scenario, from their sufficient statistics.
+   * 
+   * This is the same as adding each observation, up to rounding, as y'y is
+   * the sum of squared deviations plus the weighted squared mean.
+   * 
+   * @param row Row of the design matrix X
+   * @param mean Weighted mean of the observed values
+   * @param sqdev Weighted sum of squared deviations from the mean
+   * @param w Sum of weights
+   * @param n Number of observations
+   */
+  public void addGroup(double[] row, double mean, double sqdev, double w, int n) {
+    for(int i = 0, off = 0; i < dim; i++, off += dim) {
+      final double wi = w * row[i];
+      xty[i] += wi * mean;
+      for(int j = i; j < dim; j++) {
+        xtx[off + j] += wi * row[j];
+      }
+    }
+    yty += w * mean * mean + sqdev;
+    weight += w;
+    count += n;
+  }
+
+  /**
+   * Merge the observations of another accumulator into this one.
+   * 
+   * @param other Other accumulator, with the same columns.
+   */
+  public void merge(NormalEquations other) {
+    if(other.dim != dim) {
+      throw new IllegalArgumentException("Dimensionality does not agree.");
+    }
+    for(int i = 0; i < xtx.length; i++) {
+      xtx[i] += other.xtx[i];
+    }
+    for(int i = 0; i < dim; i++) {
+      xty[i] += other.xty[i];
+    }
+    yty += other.yty;
+    weight += other.weight;
+    count += other.count;
+  }
+
+  /**
+   * Remove all observations, to reuse the accumulator.
+   */
+  public void clear() {
+    Arrays.fill(xtx, 0.);
+    Arrays.fill(xty, 0.);
+    yty = 0;
+    weight = 0;
+    count = 0;
+  }
+
+  /**
+   * Get X'X, restricted to some columns.
+   * 
+   * @param cols Columns to use
+   * @return Symmetric matrix
+   */
+  public DenseMatrix64F getXtX(int[] cols) {
+    final int k = cols.length;
+    DenseMatrix64F mat = new DenseMatrix64F(k, k);
+    for(int i = 0; i < k; i++) {
+      for(int j = i; j < k; j++) {
+        final int a = Math.min(cols[i], cols[j]), b = Math.max(cols[i], cols[j]);
+        final double v = xtx[a * dim + b];
+        mat.unsafe_set(i, j, v);
+        mat.unsafe_set(j, i, v);
+      }
+    }
+    return mat;
+  }
+
+  /**
+   * Get X'y, restricted to some columns.
+   * 
+   * @param cols Columns to use
+   * @return Column vector
+   */
+  public DenseMatrix64F getXty(int[] cols) {
+    DenseMatrix64F vec = new DenseMatrix64F(cols.length, 1);
+    for(int i = 0; i < cols.length; i++) {
+      vec.data[i] = xty[cols[i]];
+    }
+    return vec;
+  }
+
+  /**
+   * Get an entry of X'X.
+   * 
+   * @param i Row
+   * @param j Column
+   * @return Value
+   */
+  public double getXtX(int i, int j) {
+    return i <= j ? xtx[i * dim + j] : xtx[j * dim + i];
+  }
+
+  /**
+   * Get an entry of X'y.
+   * 
+   * @param i Row
+   * @return Value
+   */
+  public double getXty(int i) {
+    return xty[i];
+  }
+
+  /**
+   * Get y'y.
+   * 
+   * @return Weighted sum of squares of the observed values
+   */
+  public double getYtY() {
+    return yty;
+  }
+
+  /**
+   * Compute the weighted residual sum of squares of a solution, as
+   * y'y - 2 b'X'y + b'X'Xb.
+   * 
+   * Note: this suffers from cancellation when the fit is very good.
+   * 
+   * @param cols Columns used
+   * @param coef Coefficients b, in the order of {@code cols}
+   * @return Residual sum of squares
+   */
+  public double residual(int[] cols, double[] coef) {
+    double sum = yty;
+    for(int i = 0; i < cols.length; i++) {
+      sum -= 2 * coef[i] * xty[cols[i]];
+      for(int j = 0; j < cols.length; j++) {
+        final int a = Math.min(cols[i], cols[j]), b = Math.max(cols[i], cols[j]);
+        sum += coef[i] * xtx[a * dim + b] * coef[j];
+      }
+    }
+    return sum > 0 ? sum : 0;
+  }
+
+  /**
+   * Get the number of columns.
+   * 
+   * @return Number of columns
+   */
+  public int getDimensionality() {
+    return dim;
+  }
+
+  /**
+   * Get the sum of weights.
+   * 
+   * @return Sum of weights
+   */
+  public double getWeight() {
+    return weight;
+  }
+
+  /**
+   * Get the number of observations.
+   * 
+   * @return Number of observations
+   */
+  public int getCount() {
+    return count;
+  }
+}
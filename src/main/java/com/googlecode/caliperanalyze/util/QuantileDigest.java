@@ -0,0 +1,363 @@
+package com.googlecode.caliperanalyze.util;
+
+/**
+ * Streaming quantile estimation with bounded memory, using a merging t-digest.
+ * 
+ * Reference:
+ * <p>
+ * T. Dunning and O. Ertl<br />
+ * Computing Extremely Accurate Quantiles Using t-Digests<br />
+ * arXiv:1902.04023
+ * </p>
+ * 
+ * Weighted values are collected in a buffer. When the buffer is full, it is
+ * sorted and merged with the existing centroids, such that the size of each
+ * centroid is bounded by the arcsine scale function: centroids near the tails
+ * are small, so extreme quantiles are more accurate than the median. All
+ * arrays are allocated once, depending only on the compression parameter, not
+ * on the number of values.
+ * 
+ * Digests can be merged, e.g. to combine partial results of multiple threads.
+ * 
+ * @author Erich Schubert
+ */
+public class QuantileDigest {
+  /**
+   * Default compression: each centroid holds at most about 1.5% of the data
+   * near the median, and much less at the tails.
+   */
+  public static final double DEFAULT_COMPRESSION = 200;
+
+  /** Compression parameter (number of centroids is about this) */
+  final double compression;
+
+  /** Centroids: means and weights, sorted by mean */
+  double[] means, weights;
+
+  /** Number of centroids */
+  int size = 0;
+
+  /** Buffer for new values and their weights */
+  double[] bufmeans, bufweights;
+
+  /** Number of buffered values */
+  int bufsize = 0;
+
+  /** Merge workspace */
+  double[] tmpmeans, tmpweights;
+
+  /** Total weight (including the buffer) */
+  double total = 0;
+
+  /** Minimum and maximum */
+  double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Constructor, with default compression.
+   */
+  public QuantileDigest() {
+    this(DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param compression Compression parameter, larger values are more accurate
+   *        but need more memory.
+   */
+  public QuantileDigest(double compression) {
+    super();
+    if(!(compression >= 10)) {
+      throw new IllegalArgumentException("Compression must be at least 10.");
+    }
+    this.compression = compression;
+    // Greedy merging with the arcsine scale function produces at most about
+    // compression centroids, the remainder is a safety margin.
+    final int capacity = 2 * (int) Math.ceil(compression) + 10;
+    final int bufcapacity = 5 * (int) Math.ceil(compression);
+    means = new double[capacity];
+    weights = new double[capacity];
+    bufmeans = new double[bufcapacity];
+    bufweights = new double[bufcapacity];
+    tmpmeans = new double[capacity + bufcapacity];
+    tmpweights = new double[capacity + bufcapacity];
+  }
+
+  /**
+   * Add a value.
+   * 
+   * @param value Value
+   * @param weight Weight, positive
+   */
+  public void add(double value, double weight) {
+    if(Double.isNaN(value) || !(weight > 0)) {
+      return;
+    }
+    if(bufsize == bufmeans.length) {
+      compress();
+    }
+    bufmeans[bufsize] = value;
+    bufweights[bufsize] = weight;
+    ++bufsize;
+    total += weight;
+    min = (min < value) ? min : value;
+    max = (max > value) ? max : value;
+  }
+
+  /**
+   * Merge another digest into this digest.
+   * 
+   * @param other Other digest, will be compressed but not otherwise modified.
+   */
+  public void merge(QuantileDigest other) {
+    other.compress();
+    total += other.total;
+    for(int i = 0; i < other.size; i++) {
+      if(bufsize == bufmeans.length) {
+        compress();
+      }
+      bufmeans[bufsize] = other.means[i];
+      bufweights[bufsize] = other.weights[i];
+      ++bufsize;
+    }
+    min = (min < other.min) ? min : other.min;
+    max = (max > other.max) ? max : other.max;
+  }
+
+  /**
+   * Merge the buffered values into the centroids.
+   */
+  public void compress() {
+    if(bufsize == 0) {
+      return;
+    }
+    sort(bufmeans, bufweights, 0, bufsize - 1);
+    // Merge the two sorted lists into the workspace:
+    int n = 0;
+    for(int i = 0, j = 0; i < size || j < bufsize;) {
+      if(j >= bufsize || (i < size && means[i] <= bufmeans[j])) {
+        tmpmeans[n] = means[i];
+        tmpweights[n++] = weights[i++];
+      }
+      else {
+        tmpmeans[n] = bufmeans[j];
+        tmpweights[n++] = bufweights[j++];
+      }
+    }
+    bufsize = 0;
+    // Greedily combine neighbors, as long as the scale function allows:
+    final double norm = compression / (2 * Math.PI);
+    double sofar = 0, limit = total * quantileOf(norm, 1, 0);
+    size = 0;
+    means[0] = tmpmeans[0];
+    weights[0] = tmpweights[0];
+    for(int i = 1; i < n; i++) {
+      final double w = tmpweights[i];
+      if(sofar + weights[size] + w <= limit) {
+        weights[size] += w;
+        means[size] += (tmpmeans[i] - means[size]) * w / weights[size];
+      }
+      else {
+        sofar += weights[size];
+        limit = total * quantileOf(norm, 1, sofar / total);
+        ++size;
+        means[size] = tmpmeans[i];
+        weights[size] = w;
+      }
+    }
+    ++size;
+  }
+
+  /**
+   * Find the quantile that is one unit of the scale function further.
+   * 
+   * The arcsine scale function is k(q) = norm * asin(2q - 1).
+   * 
+   * @param norm Normalization, compression / (2 pi)
+   * @param step Step size in k
+   * @param q Current quantile
+   * @return Quantile of k(q) + step
+   */
+  private static double quantileOf(double norm, double step, double q) {
+    final double k = norm * Math.asin(Math.min(1, Math.max(-1, 2 * q - 1))) + step;
+    return k >= norm * Math.PI * .5 ? 1. : (Math.sin(k / norm) + 1) * .5;
+  }
+
+  /**
+   * Estimate a quantile.
+   * 
+   * @param q Quantile, in [0:1]
+   * @return Estimated value, NaN if empty
+   */
+  public double quantile(double q) {
+    compress();
+    if(size == 0) {
+      return Double.NaN;
+    }
+    if(size == 1 || q <= 0) {
+      return q <= 0 ? min : q >= 1 ? max : means[0];
+    }
+    final double target = q * total;
+    // Each centroid is assumed to be centered at its mean:
+    double left = weights[0] * .5;
+    if(target < left) {
+      // Interpolate between the minimum and the first centroid.
+      return min + (means[0] - min) * (target / left);
+    }
+    for(int i = 0; i < size - 1; i++) {
+      final double right = left + (weights[i] + weights[i + 1]) * .5;
+      if(target < right) {
+        return means[i] + (means[i + 1] - means[i]) * (target - left) / (right - left);
+      }
+      left = right;
+    }
+    // Interpolate between the last centroid and the maximum.
+    final double rest = total - left;
+    return rest > 0 ? means[size - 1] + (max - means[size - 1]) * Math.min(1, (target - left) / rest) : max;
+  }
+
+  /**
+   * Estimate the trimmed mean, i.e. the mean of the values between two
+   * quantiles. Centroids on the boundary contribute with the part of their
+   * weight within the quantiles.
+   * 
+   * @param trim Fraction to trim on each side, in [0:0.5)
+   * @return Trimmed mean, NaN if empty
+   */
+  public double trimmedMean(double trim) {
+    compress();
+    final double lo = trim * total, hi = total - lo;
+    double sofar = 0, sum = 0, wsum = 0;
+    for(int i = 0; i < size && sofar < hi; i++) {
+      final double overlap = Math.min(sofar + weights[i], hi) - Math.max(sofar, lo);
+      if(overlap > 0) {
+        sum += overlap * means[i];
+        wsum += overlap;
+      }
+      sofar += weights[i];
+    }
+    return wsum > 0 ? sum / wsum : Double.NaN;
+  }
+
+  /**
+   * Estimate the Huber M-estimator of location, by iteratively reweighting the
+   * centroids, starting at the median.
+   * 
+   * @param scale Scale of the values, e.g. the normalized interquartile range
+   * @return Location, NaN if empty
+   */
+  public double huberMean(double scale) {
+    double mu = quantile(.5);
+    if(!(scale > 0)) {
+      return mu;
+    }
+    final RobustLeastSquaresFit.Loss loss = RobustLeastSquaresFit.Loss.HUBER;
+    final double cs = loss.tuning * scale;
+    for(int iter = 0; iter < RobustLeastSquaresFit.DEFAULT_MAXITER; iter++) {
+      double sum = 0, wsum = 0;
+      for(int i = 0; i < size; i++) {
+        final double w = weights[i] * loss.weight((means[i] - mu) / cs);
+        sum += w * means[i];
+        wsum += w;
+      }
+      final double prev = mu;
+      mu = sum / wsum;
+      if(Math.abs(mu - prev) <= RobustLeastSquaresFit.DEFAULT_TOLERANCE * Math.abs(mu)) {
+        break;
+      }
+    }
+    return mu;
+  }
+
+  /**
+   * Get the total weight.
+   * 
+   * @return Total weight
+   */
+  public double getWeight() {
+    return total;
+  }
+
+  /**
+   * Get the compression parameter.
+   * 
+   * @return Compression
+   */
+  public double getCompression() {
+    return compression;
+  }
+
+  /**
+   * Sort two parallel arrays by the first (quicksort with insertion sort for
+   * small ranges).
+   * 
+   * @param keys Keys to sort by
+   * @param vals Values to move along
+   * @param lo First index (inclusive)
+   * @param hi Last index (inclusive)
+   */
+  private static void sort(double[] keys, double[] vals, int lo, int hi) {
+    while(hi - lo > 16) {
+      // Median of three pivot
+      final int mid = (lo + hi) >>> 1;
+      if(keys[mid] < keys[lo]) {
+        swap(keys, vals, mid, lo);
+      }
+      if(keys[hi] < keys[lo]) {
+        swap(keys, vals, hi, lo);
+      }
+      if(keys[hi] < keys[mid]) {
+        swap(keys, vals, hi, mid);
+      }
+      final double pivot = keys[mid];
+      int i = lo, j = hi;
+      while(i <= j) {
+        while(keys[i] < pivot) {
+          ++i;
+        }
+        while(keys[j] > pivot) {
+          --j;
+        }
+        if(i <= j) {
+          swap(keys, vals, i++, j--);
+        }
+      }
+      // Recurse into the smaller part, iterate on the larger part:
+      if(j - lo < hi - i) {
+        sort(keys, vals, lo, j);
+        lo = i;
+      }
+      else {
+        sort(keys, vals, i, hi);
+        hi = j;
+      }
+    }
+    for(int i = lo + 1; i <= hi; i++) {
+      final double k = keys[i], v = vals[i];
+      int j = i - 1;
+      for(; j >= lo && keys[j] > k; j--) {
+        keys[j + 1] = keys[j];
+        vals[j + 1] = vals[j];
+      }
+      keys[j + 1] = k;
+      vals[j + 1] = v;
+    }
+  }
+
+  /**
+   * Swap two entries of parallel arrays.
+   * 
+   * @param keys Keys
+   * @param vals Values
+   * @param i First position
+   * @param j Second position
+   */
+  private static void swap(double[] keys, double[] vals, int i, int j) {
+    double tmp = keys[i];
+    keys[i] = keys[j];
+    keys[j] = tmp;
+    tmp = vals[i];
+    vals[i] = vals[j];
+    vals[j] = tmp;
+  }
+}
@@ -0,0 +1,207 @@
+package com.googlecode.caliperanalyze.util;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.DecompositionFactory;
+import org.ejml.factory.SingularValueDecomposition;
+
+/**
+ * Regularization path of ridge regression (Tikhonov regularization), with the
+ * choice of lambda by generalized cross-validation (GCV).
+ * 
+ * Reference:
+ * <p>
+ * G. H. Golub, M. Heath and G. Wahba<br />
+ * Generalized Cross-Validation as a Method for Choosing a Good Ridge
+ * Parameter<br />
+ * Technometrics 21(2)
+ * </p>
+ * 
+ * The columns are standardized to unit norm first, so that lambda does not
+ * depend on the scale of the columns (or of the time unit), i.e. the penalty of
+ * each coefficient is lambda times the squared norm of its column. This is the
+ * relative regularization of {@link LeastSquaresFit}.
+ * 
+ * With the singular value decomposition X = U S V' of the standardized columns,
+ * the ridge solution is b(lambda) = V diag(1 / (s^2 + lambda)) V' X'y. As only
+ * the normal equations are available, the SVD of X'X = V S^2 V' is used, which
+ * has the same V. After this single decomposition, the residuals and the
+ * effective degrees of freedom df(lambda) = sum s^2 / (s^2 + lambda) of any
+ * lambda cost O(p), so a whole grid of lambdas can be evaluated for about the
+ * cost of a single fit.
+ * 
+ * GCV(lambda) = n * RSS(lambda) / (n - df(lambda))^2
+ * 
+ * @author Erich Schubert
+ */
+public class RidgePath {
+  /** Default number of lambda values per decade */
+  public static final int STEPS_PER_DECADE = 4;
+
+  /** Default number of decades below the largest eigenvalue */
+  public static final int DECADES = 12;
+
+  /** Eigenvalues of X'X, i.e. squared singular values of X */
+  private final double[] d;
+
+  /** Right singular vectors, by column */
+  private final DenseMatrix64F v;
+
+  /** Projections V' X'y */
+  private final double[] c;
+
+  /** Column scaling factors, 1 / norm */
+  private final double[] scale;
+
+  /** y'y */
+  private final double yty;
+
+  /** Number of observations */
+  private final double n;
+
+  /**
+   * Constructor, decomposing the normal equations.
+   * 
+   * @param eq Normal equations
+   * @param cols Columns to use
+   */
+  public RidgePath(NormalEquations eq, int[] cols) {
+    super();
+    final int k = cols.length;
+    this.yty = eq.getYtY();
+    this.n = eq.getCount();
+    this.d = new double[k];
+    this.c = new double[k];
+    this.scale = new double[k];
+    if (k == 0) {
+      v = new DenseMatrix64F(0, 0);
+      return;
+    }
+    SingularValueDecomposition<DenseMatrix64F> svd = DecompositionFactory.svd(k, k, false, true, false);
+    DenseMatrix64F xtx = eq.getXtX(cols), xty = eq.getXty(cols);
+    for (int i = 0; i < k; i++) {
+      final double norm = xtx.unsafe_get(i, i);
+      scale[i] = norm > 0 ? 1. / Math.sqrt(norm) : 0.;
+    }
+    for (int i = 0; i < k; i++) {
+      for (int j = 0; j < k; j++) {
+        xtx.unsafe_set(i, j, xtx.unsafe_get(i, j) * scale[i] * scale[j]);
+      }
+    }
+    if (!svd.decompose(xtx)) {
+      throw new IllegalStateException("Singular value decomposition failed.");
+    }
+    System.arraycopy(svd.getSingularValues(), 0, d, 0, k);
+    v = svd.getV(null, false);
+    for (int i = 0; i < k; i++) {
+      double sum = 0;
+      for (int j = 0; j < k; j++) {
+        sum += v.unsafe_get(j, i) * xty.data[j] * scale[j];
+      }
+      c[i] = sum;
+    }
+  }
+
+  /**
+   * Residual sum of squares of the ridge solution.
+   * 
+   * @param lambda Regularization parameter lambda
+   * @return Residual sum of squares
+   */
+  public double residual(double lambda) {
+    // RSS = y'y - 2 b'X'y + b'X'X b, in the basis of V:
+    double rss = yty;
+    for (int i = 0; i < d.length; i++) {
+      final double f = d[i] + lambda;
+      if (f > 0) {
+        rss -= c[i] * c[i] * (d[i] + 2 * lambda) / (f * f);
+      }
+    }
+    return rss > 0 ? rss : 0;
+  }
+
+  /**
+   * Effective degrees of freedom of the ridge solution.
+   * 
+   * @param lambda Regularization parameter lambda
+   * @return Degrees of freedom, at most the number of columns
+   */
+  public double degreesOfFreedom(double lambda) {
+    double df = 0;
+    for (int i = 0; i < d.length; i++) {
+      if (d[i] > 0) {
+        df += d[i] / (d[i] + lambda);
+      }
+    }
+    return df;
+  }
+
+  /**
+   * Generalized cross-validation score.
+   * 
+   * @param lambda Regularization parameter lambda
+   * @return GCV score, infinite if there are too few observations.
+   */
+  public double gcv(double lambda) {
+    final double rest = n - degreesOfFreedom(lambda);
+    return rest > 0 ? n * residual(lambda) / (rest * rest) : Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Compute the ridge solution.
+   * 
+   * @param lambda Regularization parameter lambda
+   * @param out Output array for the coefficients, in the order of the columns
+   */
+  public void solve(double lambda, double[] out) {
+    final int k = d.length;
+    for (int j = 0; j < k; j++) {
+      double sum = 0;
+      for (int i = 0; i < k; i++) {
+        final double f = d[i] + lambda;
+        if (f > 0) {
+          sum += v.unsafe_get(j, i) * c[i] / f;
+        }
+      }
+      out[j] = sum * scale[j];
+    }
+  }
+
+  /**
+   * Choose lambda by GCV on the default grid: {@link #STEPS_PER_DECADE} values
+   * per decade, from the largest eigenvalue of the standardized X'X down by
+   * {@link #DECADES} decades.
+   * 
+   * @return Best lambda, 0 if there are no columns.
+   */
+  public double selectLambda() {
+    return selectLambda(STEPS_PER_DECADE, DECADES);
+  }
+
+  /**
+   * Choose lambda by GCV on a logarithmic grid relative to the largest
+   * eigenvalue of the standardized X'X.
+   * 
+   * @param steps Number of values per decade
+   * @param decades Number of decades
+   * @return Best lambda, 0 if there are no columns.
+   */
+  public double selectLambda(int steps, int decades) {
+    double max = 0;
+    for (double di : d) {
+      max = di > max ? di : max;
+    }
+    if (!(max > 0)) {
+      return 0;
+    }
+    double best = max, bestscore = Double.POSITIVE_INFINITY;
+    for (int i = 0; i <= steps * decades; i++) {
+      final double lambda = max * Math.pow(10, -i / (double) steps);
+      final double score = gcv(lambda);
+      if (score < bestscore) {
+        bestscore = score;
+        best = lambda;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,332 @@
+package com.googlecode.caliperanalyze.util;
+
+import java.util.Arrays;
+
+/**
+ * Robust (and weighted) linear least squares fitting with M-estimators, by
+ * iteratively reweighted least squares (IRLS).
+ * 
+ * In each iteration, the weighted normal equations are accumulated and solved
+ * (see {@link LeastSquaresFit}), the residuals are standardized by their
+ * median absolute deviation (MAD), and each observation is reweighted by the
+ * loss function. Outliers, e.g. measurements disturbed by garbage collection
+ * or JIT compilation, thus get a small (Huber) or zero (Tukey) weight.
+ * 
+ * Tukey's biweight is not convex, so it is started from the Huber solution.
+ * 
+ * Benchmark measurements are usually heteroscedastic (the error is roughly
+ * proportional to the runtime), so a single residual scale would mark all
+ * observations with large values as outliers. If the observations come in
+ * blocks of repetitions at the same design point, the scale can therefore be
+ * estimated per block instead.
+ * 
+ * All workspaces are allocated once, and reused in each iteration and for
+ * further fits of at most the same size.
+ * 
+ * Reference:
+ * <p>
+ * P. J. Huber<br />
+ * Robust Statistics<br />
+ * Wiley, 1981
+ * </p>
+ * 
+ * @author Erich Schubert
+ */
+public class RobustLeastSquaresFit {
+  /**
+   * Loss functions, with the usual tuning constants for 95% efficiency at the
+   * normal distribution.
+   */
+  public enum Loss {
+    /** Huber loss: quadratic for small residuals, linear for large. */
+    HUBER(1.345) {
+      @Override
+      double weight(double u) {
+        final double a = Math.abs(u);
+        return a <= 1 ? 1. : 1. / a;
+      }
+    },
+    /** Tukey's biweight: large residuals are ignored. */
+    TUKEY(4.685) {
+      @Override
+      double weight(double u) {
+        if (!(Math.abs(u) < 1)) {
+          return 0.;
+        }
+        final double v = 1 - u * u;
+        return v * v;
+      }
+    };
+
+    /** Tuning constant, in units of the residual scale */
+    final double tuning;
+
+    /**
+     * Constructor.
+     * 
+     * @param tuning Tuning constant
+     */
+    private Loss(double tuning) {
+      this.tuning = tuning;
+    }
+
+    /**
+     * Weight of a residual.
+     * 
+     * @param u Residual, in units of the tuning constant times the scale
+     * @return Weight
+     */
+    abstract double weight(double u);
+  }
+
+  /** Default maximum number of iterations. */
+  public static final int DEFAULT_MAXITER = 50;
+
+  /** Default relative tolerance of the coefficients. */
+  public static final double DEFAULT_TOLERANCE = 1e-6;
+
+  /** Consistency constant of the MAD for the normal distribution */
+  private static final double MAD_SCALE = 1.4826;
+
+  /** Minimum size of a block to estimate its own scale */
+  private static final int MIN_BLOCK_SIZE = 5;
+
+  /** Loss function */
+  private final Loss loss;
+
+  /** Regularization parameter lambda */
+  private final double lambda;
+
+  /** Maximum number of iterations */
+  private final int maxiter;
+
+  /** Relative tolerance */
+  private final double tolerance;
+
+  /** Number of columns */
+  private final int dim;
+
+  /** All columns */
+  private final int[] cols;
+
+  /** Weighted normal equations */
+  private final NormalEquations eq;
+
+  /** Factorization workspace */
+  private final LeastSquaresFit fit;
+
+  /** Current and previous coefficients */
+  private final double[] coef, prev;
+
+  /** Robust weights, absolute weighted residuals, sorting workspace */
+  private double[] robust = new double[0], absres = new double[0], sorted = new double[0];
+
+  /** Residual scale of the last fit */
+  private double scale;
+
+  /** Iterations of the last fit */
+  private int iterations;
+
+  /** Convergence flag of the last fit */
+  private boolean converged;
+
+  /**
+   * Constructor, with default parameters.
+   * 
+   * @param dim Number of columns
+   * @param loss Loss function
+   * @param lambda Regularization parameter lambda
+   */
+  public RobustLeastSquaresFit(int dim, Loss loss, double lambda) {
+    this(dim, loss, lambda, DEFAULT_MAXITER, DEFAULT_TOLERANCE);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param dim Number of columns
+   * @param loss Loss function
+   * @param lambda Regularization parameter lambda
+   * @param maxiter Maximum number of iterations
+   * @param tolerance Relative tolerance of the coefficients
+   */
+  public RobustLeastSquaresFit(int dim, Loss loss, double lambda, int maxiter, double tolerance) {
+    super();
+    this.dim = dim;
+    this.loss = loss;
+    this.lambda = lambda;
+    this.maxiter = maxiter;
+    this.tolerance = tolerance;
+    this.cols = new int[dim];
+    for (int j = 0; j < dim; j++) {
+      cols[j] = j;
+    }
+    this.eq = new NormalEquations(dim);
+    this.fit = new LeastSquaresFit(dim);
+    this.coef = new double[dim];
+    this.prev = new double[dim];
+  }
+
+  /**
+   * Fit the observations, with a single residual scale.
+   * 
+   * @param x Design matrix, row-major with {@code dim} columns
+   * @param y Observed values
+   * @param w Observation weights, e.g. the inverse variances
+   * @param n Number of observations
+   * @return Coefficients (valid until the next fit)
+   */
+  public double[] fit(double[] x, double[] y, double[] w, int n) {
+    return fit(x, y, w, n, null);
+  }
+
+  /**
+   * Fit the observations, with a residual scale per block.
+   * 
+   * @param x Design matrix, row-major with {@code dim} columns
+   * @param y Observed values
+   * @param w Observation weights, e.g. the inverse variances
+   * @param n Number of observations
+   * @param blocks End (exclusive) of each block of observations, in
+   *        increasing order; {@code null} for a single block. Blocks with
+   *        fewer than 5 observations use the overall scale.
+   * @return Coefficients (valid until the next fit)
+   */
+  public double[] fit(double[] x, double[] y, double[] w, int n, int[] blocks) {
+    if (robust.length < n) {
+      robust = new double[n];
+      absres = new double[n];
+      sorted = new double[n];
+    }
+    Arrays.fill(robust, 0, n, 1.);
+    Arrays.fill(coef, 0.);
+    iterations = 0;
+    converged = false;
+    // Tukey is started from the Huber solution:
+    Loss current = loss == Loss.TUKEY ? Loss.HUBER : loss;
+    while (iterations < maxiter) {
+      ++iterations;
+      System.arraycopy(coef, 0, prev, 0, dim);
+      solve(x, y, w, n);
+      // Standardized absolute residuals:
+      for (int i = 0, off = 0; i < n; i++, off += dim) {
+        double r = y[i];
+        for (int j = 0; j < dim; j++) {
+          r -= x[off + j] * coef[j];
+        }
+        absres[i] = Math.abs(r) * Math.sqrt(w[i]);
+      }
+      System.arraycopy(absres, 0, sorted, 0, n);
+      scale = MAD_SCALE * median(sorted, n);
+      if (!(scale > 0)) {
+        converged = true; // Exact fit of most observations.
+        break;
+      }
+      for (int b = 0, begin = 0; begin < n; b++) {
+        final int end = blocks != null ? blocks[b] : n;
+        double bscale = scale;
+        if (blocks != null && end - begin >= MIN_BLOCK_SIZE) {
+          System.arraycopy(absres, begin, sorted, 0, end - begin);
+          bscale = MAD_SCALE * median(sorted, end - begin);
+          bscale = bscale > 0 ? bscale : scale;
+        }
+        final double cs = current.tuning * bscale;
+        for (int i = begin; i < end; i++) {
+          robust[i] = current.weight(absres[i] / cs);
+        }
+        begin = end;
+      }
+      if (iterations > 1 && change() <= tolerance) {
+        if (current == loss) {
+          converged = true;
+          break;
+        }
+        current = loss;
+      }
+    }
+    return coef;
+  }
+
+  /**
+   * Solve the weighted least squares problem with the current robust weights.
+   * 
+   * @param x Design matrix
+   * @param y Observed values
+   * @param w Observation weights
+   * @param n Number of observations
+   */
+  private void solve(double[] x, double[] y, double[] w, int n) {
+    eq.clear();
+    for (int i = 0, off = 0; i < n; i++, off += dim) {
+      final double wi = w[i] * robust[i];
+      if (wi > 0) {
+        eq.add(x, off, y[i], wi);
+      }
+    }
+    fit.factor(eq, cols, lambda);
+    fit.solve(coef);
+  }
+
+  /**
+   * Relative change of the coefficients in the last iteration.
+   * 
+   * @return Maximum change, relative to the largest coefficient
+   */
+  private double change() {
+    double maxchange = 0, maxcoef = 0;
+    for (int j = 0; j < dim; j++) {
+      maxchange = Math.max(maxchange, Math.abs(coef[j] - prev[j]));
+      maxcoef = Math.max(maxcoef, Math.abs(coef[j]));
+    }
+    return maxcoef > 0 ? maxchange / maxcoef : maxchange;
+  }
+
+  /**
+   * Median of the first n values; the values are reordered.
+   * 
+   * @param data Data
+   * @param n Number of values
+   * @return Median
+   */
+  private static double median(double[] data, int n) {
+    Arrays.sort(data, 0, n);
+    return (n & 1) == 1 ? data[n >> 1] : .5 * (data[(n >> 1) - 1] + data[n >> 1]);
+  }
+
+  /**
+   * Get the robust weight of an observation in the last fit.
+   * 
+   * @param i Observation
+   * @return Robust weight, in [0:1]
+   */
+  public double getRobustWeight(int i) {
+    return robust[i];
+  }
+
+  /**
+   * Get the overall residual scale of the last fit.
+   * 
+   * @return Scale (normalized MAD)
+   */
+  public double getScale() {
+    return scale;
+  }
+
+  /**
+   * Get the number of iterations of the last fit.
+   * 
+   * @return Iterations
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Check if the last fit converged.
+   * 
+   * @return {@code false} if the iteration limit was reached.
+   */
+  public boolean isConverged() {
+    return converged;
+  }
+}
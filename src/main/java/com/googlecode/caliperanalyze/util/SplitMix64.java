@@ -0,0 +1,117 @@
+package com.googlecode.caliperanalyze.util;
+
+/**
+ * Small, fast and splittable pseudo random number generator (SplitMix64).
+ * 
+ * Reference:
+ * <p>
+ * G. L. Steele Jr., D. Lea and C. H. Flood<br />
+ * Fast Splittable Pseudorandom Number Generators<br />
+ * Proc. OOPSLA 2014
+ * </p>
+ * 
+ * Each thread (or task) should use its own generator, obtained with
+ * {@link #split()}. Splitting in a fixed order gives reproducible results
+ * regardless of the number of threads. Not thread safe, and not suitable for
+ * cryptography.
+ * 
+ * @author Erich Schubert
+ */
+public class SplitMix64 {
+  /** Golden ratio increment */
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  /** State */
+  private long seed;
+
+  /** Increment, odd */
+  private final long gamma;
+
+  /**
+   * Constructor.
+   * 
+   * @param seed Random seed
+   */
+  public SplitMix64(long seed) {
+    this(seed, GOLDEN_GAMMA);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param seed Initial state
+   * @param gamma Increment, odd
+   */
+  private SplitMix64(long seed, long gamma) {
+    super();
+    this.seed = seed;
+    this.gamma = gamma;
+  }
+
+  /**
+   * Get the next 64 random bits.
+   * 
+   * @return Random long
+   */
+  public long nextLong() {
+    return mix64(seed += gamma);
+  }
+
+  /**
+   * Get a random integer in [0:bound).
+   * 
+   * Uses the multiply-shift reduction of 32 random bits, which has a
+   * negligible bias for bounds much smaller than 2^32.
+   * 
+   * @param bound Upper bound (exclusive), positive
+   * @return Random integer
+   */
+  public int nextInt(int bound) {
+    return (int) (((nextLong() >>> 32) * bound) >>> 32);
+  }
+
+  /**
+   * Get a random double in [0:1).
+   * 
+   * @return Random double
+   */
+  public double nextDouble() {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * Create a new, independent generator, and advance this generator.
+   * 
+   * @return New generator
+   */
+  public SplitMix64 split() {
+    return new SplitMix64(nextLong(), mixGamma(seed += gamma));
+  }
+
+  /**
+   * Finalization of the state (variant 13 of Stafford's mixers).
+   * 
+   * @param z State
+   * @return Mixed bits
+   */
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Derive a new increment, which must be odd and have enough bit
+   * transitions.
+   * 
+   * @param z State
+   * @return Increment
+   */
+  private static long mixGamma(long z) {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    z = (z ^ (z >>> 33)) | 1L;
+    final int n = Long.bitCount(z ^ (z >>> 1));
+    return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+  }
+}
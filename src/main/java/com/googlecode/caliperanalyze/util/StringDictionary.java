@@ -0,0 +1,64 @@
+package com.googlecode.caliperanalyze.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Dictionary encoding of strings: each distinct string is stored once, and
+ * represented by a dense integer code.
+ * 
+ * @author Erich Schubert
+ */
+public class StringDictionary {
+  /** Strings, by code */
+  private final ArrayList<String> strings = new ArrayList<>();
+
+  /** Codes, by string */
+  private final HashMap<String, Integer> codes = new HashMap<>();
+
+  /**
+   * Get the code of a string, adding it to the dictionary if necessary.
+   * 
+   * @param s String, not {@code null}
+   * @return Code
+   */
+  public int encode(String s) {
+    Integer code = codes.get(s);
+    if(code == null) {
+      code = strings.size();
+      strings.add(s);
+      codes.put(s, code);
+    }
+    return code;
+  }
+
+  /**
+   * Find the code of a string, without adding it.
+   * 
+   * @param s String
+   * @return Code, or -1 if not in the dictionary
+   */
+  public int find(String s) {
+    Integer code = codes.get(s);
+    return code != null ? code : -1;
+  }
+
+  /**
+   * Get the string for a code.
+   * 
+   * @param code Code
+   * @return String
+   */
+  public String get(int code) {
+    return strings.get(code);
+  }
+
+  /**
+   * Get the number of distinct strings.
+   * 
+   * @return Size
+   */
+  public int size() {
+    return strings.size();
+  }
+}
@@ -0,0 +1,69 @@
+package com.googlecode.caliperanalyze.util;
+
+/**
+ * Quantiles of the normal and Student's t distributions, for confidence and
+ * prediction intervals.
+ * 
+ * The normal quantile uses the rational approximation of P. J. Acklam
+ * (relative error below 1.2e-9), the t quantile the Cornish-Fisher expansion
+ * of Abramowitz and Stegun 26.7.5 (exact for one and two degrees of freedom).
+ * 
+ * @author Erich Schubert
+ */
+public class StudentT {
+  /** Coefficients of the central region */
+  private static final double[] A = { -3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00 };
+
+  /** Coefficients of the central region */
+  private static final double[] B = { -5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01 };
+
+  /** Coefficients of the tails */
+  private static final double[] C = { -7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00 };
+
+  /** Coefficients of the tails */
+  private static final double[] D = { 7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00 };
+
+  /**
+   * Quantile of the standard normal distribution.
+   * 
+   * @param p Probability, in (0:1)
+   * @return Quantile
+   */
+  public static double normalQuantile(double p) {
+    if (!(p > 0 && p < 1)) {
+      return p == 0 ? Double.NEGATIVE_INFINITY : p == 1 ? Double.POSITIVE_INFINITY : Double.NaN;
+    }
+    if (p < 0.02425 || p > 0.97575) {
+      final double q = Math.sqrt(-2 * Math.log(p < .5 ? p : 1 - p));
+      final double x = (((((C[0] * q + C[1]) * q + C[2]) * q + C[3]) * q + C[4]) * q + C[5]) / ((((D[0] * q + D[1]) * q + D[2]) * q + D[3]) * q + 1);
+      return p < .5 ? x : -x;
+    }
+    final double q = p - .5, r = q * q;
+    return (((((A[0] * r + A[1]) * r + A[2]) * r + A[3]) * r + A[4]) * r + A[5]) * q / (((((B[0] * r + B[1]) * r + B[2]) * r + B[3]) * r + B[4]) * r + 1);
+  }
+
+  /**
+   * Quantile of Student's t distribution.
+   * 
+   * @param p Probability, in (0:1)
+   * @param dof Degrees of freedom, positive
+   * @return Quantile
+   */
+  public static double quantile(double p, double dof) {
+    if (!(dof > 0)) {
+      return Double.NaN;
+    }
+    if (dof == 1) {
+      return Math.tan(Math.PI * (p - .5));
+    }
+    if (dof == 2) {
+      return (2 * p - 1) / Math.sqrt(2 * p * (1 - p));
+    }
+    final double x = normalQuantile(p), x2 = x * x;
+    final double g1 = (x2 + 1) * x / 4;
+    final double g2 = ((5 * x2 + 16) * x2 + 3) * x / 96;
+    final double g3 = (((3 * x2 + 19) * x2 + 17) * x2 - 15) * x / 384;
+    final double g4 = ((((79 * x2 + 776) * x2 + 1482) * x2 - 1920) * x2 - 945) * x / 92160;
+    return x + (g1 + (g2 + (g3 + g4 / dof) / dof) / dof) / dof;
+  }
+}
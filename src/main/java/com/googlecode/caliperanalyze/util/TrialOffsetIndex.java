@@ -0,0 +1,228 @@
+package com.googlecode.caliperanalyze.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Index of the byte ranges of the trials in a Caliper result file.
+ * 
+ * Caliper stores its results as a single JSON array of trials. This class
+ * scans a memory mapped copy of the file and records where each top-level
+ * element of this array begins and ends, without decoding it. The trials can
+ * then be decoded lazily, in any order, or split across threads.
+ * 
+ * Only string quoting and nesting depth are tracked, so this is much cheaper
+ * than parsing. The structural characters of JSON are all ASCII, and never
+ * occur within UTF-8 multibyte sequences, so the bytes can be scanned
+ * directly.
+ * 
+ * Incomplete trailing elements (e.g. in truncated files of a run still in
+ * progress) are not included in the index. The scanner state is kept, so that
+ * the index can be {@link #update updated} when the file has grown, scanning
+ * only the appended bytes.
+ * 
+ * @author Erich Schubert
+ */
+public class TrialOffsetIndex {
+  /**
+   * Initial size for allocations.
+   */
+  private static final int INITIAL_SIZE = 21;
+
+  /**
+   * Maximum size of a mapped region.
+   */
+  private static final long MAP_SIZE = 1L << 30;
+
+  /** Start (inclusive) and end (exclusive) offsets of the elements */
+  long[] starts = new long[INITIAL_SIZE], ends = new long[INITIAL_SIZE];
+
+  /** Number of elements */
+  int size = 0;
+
+  /** Scanner state: position in file */
+  long position = 0;
+
+  /** Scanner state: nesting depth, 1 is inside the top-level array */
+  int depth = 0;
+
+  /** Scanner state: within a string, after an escape character */
+  boolean inString = false, escape = false;
+
+  /** Scanner state: start of the current element, or -1 */
+  long elementStart = -1;
+
+  /** Top-level array was closed */
+  boolean complete = false;
+
+  /**
+   * Constructor for an empty index. Use {@link #update} to scan a file, or
+   * {@link #build} to index a file at once.
+   */
+  public TrialOffsetIndex() {
+    super();
+  }
+
+  /**
+   * Build the index for a file.
+   * 
+   * @param file File to index
+   * @return Index
+   * @throws IOException on I/O errors, or when the file does not contain a
+   *         JSON array.
+   */
+  public static TrialOffsetIndex build(File file) throws IOException {
+    TrialOffsetIndex index = new TrialOffsetIndex();
+    index.update(file);
+    return index;
+  }
+
+  /**
+   * Continue scanning a file that was appended to.
+   * 
+   * @param file File to scan, must start with the previously scanned contents.
+   * @return Number of elements added to the index
+   * @throws IOException on I/O errors, when the file does not contain a JSON
+   *         array, or when it has become shorter.
+   */
+  public int update(File file) throws IOException {
+    final int before = size;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      if(channel.size() < position) {
+        throw new IOException("File has become shorter: " + file);
+      }
+      scan(channel);
+    }
+    return size - before;
+  }
+
+  /**
+   * Scan the channel, starting at the current position.
+   * 
+   * @param channel Channel to scan
+   * @throws IOException on I/O errors, or when the file does not contain a
+   *         JSON array.
+   */
+  protected void scan(FileChannel channel) throws IOException {
+    final long length = channel.size();
+    while(position < length && !complete) {
+      final long base = position;
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(MAP_SIZE, length - base));
+      final int limit = buf.limit();
+      int i = 0;
+      for(; i < limit && !complete; i++) {
+        final byte b = buf.get(i);
+        if(inString) {
+          if(escape) {
+            escape = false;
+          }
+          else if(b == '\\') {
+            escape = true;
+          }
+          else if(b == '"') {
+            inString = false;
+          }
+          continue;
+        }
+        switch(b){
+        case '"':
+          inString = true;
+          break;
+        case '{':
+        case '[':
+          if(depth == 1 && elementStart < 0) {
+            elementStart = base + i;
+          }
+          ++depth;
+          break;
+        case '}':
+        case ']':
+          --depth;
+          if(depth == 1 && elementStart >= 0) {
+            add(elementStart, base + i + 1);
+            elementStart = -1;
+          }
+          else if(depth == 0) {
+            complete = true;
+          }
+          break;
+        case ' ':
+        case '\t':
+        case '\r':
+        case '\n':
+        case ',':
+          break;
+        default:
+          if(depth == 0) {
+            throw new IOException("Not a JSON array of trials.");
+          }
+        }
+        if(depth < 0) {
+          throw new IOException("Unbalanced JSON input.");
+        }
+      }
+      position = base + i;
+    }
+  }
+
+  /**
+   * Add an element to the index.
+   * 
+   * @param start Start offset
+   * @param end End offset
+   */
+  private void add(long start, long end) {
+    if(size == starts.length) {
+      int newsize = (starts.length << 1) + 1;
+      starts = Arrays.copyOf(starts, newsize);
+      ends = Arrays.copyOf(ends, newsize);
+    }
+    starts[size] = start;
+    ends[size] = end;
+    ++size;
+  }
+
+  /**
+   * Get the number of (complete) elements.
+   * 
+   * @return Number of elements
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the start offset of an element.
+   * 
+   * @param i Element number
+   * @return Offset of the first byte
+   */
+  public long getStart(int i) {
+    return starts[i];
+  }
+
+  /**
+   * Get the end offset of an element.
+   * 
+   * @param i Element number
+   * @return Offset after the last byte
+   */
+  public long getEnd(int i) {
+    return ends[i];
+  }
+
+  /**
+   * Check whether the top-level array was closed, i.e. the file is not
+   * truncated.
+   * 
+   * @return {@code true} when the file was complete
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+}
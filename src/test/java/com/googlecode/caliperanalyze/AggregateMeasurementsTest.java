@@ -0,0 +1,116 @@
+package com.googlecode.caliperanalyze;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.googlecode.caliperanalyze.util.QuantileDigest;
+
+/**
+ * Test merging of partial aggregates, and the accuracy of the quantiles.
+ * 
+ * @author Erich Schubert
+ */
+public class AggregateMeasurementsTest extends TestCase {
+  /** Number of values */
+  private static final int SIZE = 100000;
+
+  /**
+   * Single pass aggregation and merging partial aggregates in a tree must
+   * agree, on values with a huge mean and a tiny variance.
+   */
+  public void testMerge() {
+    Random rnd = new Random(0L);
+    double[] vals = new double[SIZE], ws = new double[SIZE];
+    for(int i = 0; i < SIZE; i++) {
+      vals[i] = 1e9 + rnd.nextGaussian() * 1e-3;
+      ws[i] = 1 + rnd.nextInt(1000);
+    }
+    // Two-pass reference, shifted by the first value:
+    double wsum = 0, wsqsum = 0, shift = 0, sqdev = 0;
+    for(int i = 0; i < SIZE; i++) {
+      wsum += ws[i];
+      wsqsum += ws[i] * ws[i];
+      shift += (vals[i] - vals[0]) * ws[i];
+    }
+    final double mean = vals[0] + shift / wsum;
+    for(int i = 0; i < SIZE; i++) {
+      sqdev += ws[i] * (vals[i] - mean) * (vals[i] - mean);
+    }
+    final double stddev = Math.sqrt(sqdev / (wsum - wsqsum / wsum));
+
+    AggregateMeasurements single = new AggregateMeasurements();
+    for(int i = 0; i < SIZE; i++) {
+      single.add(vals[i], ws[i]);
+    }
+    // Partial aggregates of random size, merged pairwise as in a tree:
+    ArrayList<AggregateMeasurements> parts = new ArrayList<>();
+    for(int i = 0; i < SIZE;) {
+      AggregateMeasurements part = new AggregateMeasurements();
+      for(int end = Math.min(SIZE, i + 1 + rnd.nextInt(1000)); i < end; i++) {
+        part.add(vals[i], ws[i]);
+      }
+      parts.add(part);
+    }
+    parts.add(new AggregateMeasurements()); // Empty partial aggregate
+    while(parts.size() > 1) {
+      ArrayList<AggregateMeasurements> next = new ArrayList<>();
+      for(int i = 0; i < parts.size(); i += 2) {
+        next.add(i + 1 < parts.size() ? parts.get(i).merge(parts.get(i + 1)) : parts.get(i));
+      }
+      parts = next;
+    }
+    AggregateMeasurements merged = parts.get(0);
+
+    assertEquals("stddev, single pass", stddev, single.getStandardDeviation(), stddev * 1e-5);
+    assertEquals("stddev, merged", stddev, merged.getStandardDeviation(), stddev * 1e-5);
+    // The mean is equal up to rounding, the others exactly:
+    assertEquals("mean", single.getMean(), merged.getMean(), mean * 1e-15);
+    assertEquals("weight", single.getWeight(), merged.getWeight(), 0.);
+    assertEquals("min", single.getMin(), merged.getMin(), 0.);
+    assertEquals("max", single.getMax(), merged.getMax(), 0.);
+  }
+
+  /**
+   * Quantiles of a skewed distribution, of a single digest and of merged
+   * digests, must be within the rank error allowed by the compression.
+   */
+  public void testQuantiles() {
+    Random rnd = new Random(0L);
+    final double compression = QuantileDigest.DEFAULT_COMPRESSION;
+    double[] vals = new double[SIZE];
+    AggregateMeasurements single = new AggregateMeasurements().enableQuantiles(compression);
+    AggregateMeasurements merged = new AggregateMeasurements().enableQuantiles(compression);
+    for(int p = 0, i = 0; p < 10; p++) {
+      AggregateMeasurements part = new AggregateMeasurements().enableQuantiles(compression);
+      for(int end = i + SIZE / 10; i < end; i++) {
+        vals[i] = -Math.log(rnd.nextDouble()); // Exponential distribution
+        single.add(vals[i], 1.);
+        part.add(vals[i], 1.);
+      }
+      merged.merge(part);
+    }
+    Arrays.sort(vals);
+    for(double q : new double[] { .5, .9, .99 }) {
+      // A centroid spans at most one unit of the arcsine scale function,
+      // k(q) = compression / (2 pi) * asin(2q - 1), i.e. this many quantiles:
+      final double tolerance = 2 * Math.PI * Math.sqrt(q * (1 - q)) / compression;
+      assertEquals("rank of quantile " + q + ", single", q, rank(vals, single.getQuantile(q)), tolerance);
+      assertEquals("rank of quantile " + q + ", merged", q, rank(vals, merged.getQuantile(q)), tolerance);
+    }
+  }
+
+  /**
+   * Empirical rank of a value, i.e. the fraction of values below it.
+   * 
+   * @param sorted Sorted values
+   * @param x Value
+   * @return Rank, in [0:1]
+   */
+  private static double rank(double[] sorted, double x) {
+    int pos = Arrays.binarySearch(sorted, x);
+    return (pos >= 0 ? pos : -pos - 1) / (double) sorted.length;
+  }
+}